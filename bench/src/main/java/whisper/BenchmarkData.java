@@ -0,0 +1,40 @@
+package whisper;
+
+/**
+ * Inputs of the benchmarks
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return a verbose_json response of whisper-server, with the words of each segment
+     */
+    static String createServerResponse(int segments) {
+        final String[] words = { "[_BEG_]", " And", " so", " my", " fellow", " Americans", ",", " ask", " not", " what", " your", " country", " can", " do", " for", " you", "." };
+        final StringBuilder b = new StringBuilder("{\"task\":\"transcribe\",\"language\":\"english\",\"duration\":" + segments * 3 + ",\"text\":\"");
+        for (int i = 0; i < segments; i++) {
+            b.append(" And so my fellow Americans, ask not what your country can do for you.");
+        }
+        b.append("\",\"segments\":[");
+        for (int i = 0; i < segments; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append("{\"id\":").append(i).append(",\"start\":").append(i * 3).append(".0,\"end\":").append(i * 3 + 3)
+                    .append(".0,\"text\":\" And so my fellow Americans, ask not what your country can do for you.\",\"tokens\":[50364,400,370,452,7177,6280,11,1029,406,437,428,1941,393,360,337,291,13],\"temperature\":0.0,\"avg_logprob\":-0.21,\"no_speech_prob\":0.01");
+            b.append(",\"words\":[");
+            for (int j = 0; j < words.length; j++) {
+                if (j > 0) {
+                    b.append(',');
+                }
+                b.append("{\"word\":\"").append(words[j]).append("\",\"start\":").append(i * 3 + j * 0.17).append(",\"end\":").append(i * 3 + (j + 1) * 0.17)
+                        .append(",\"t_dtw\":-1,\"probability\":0.93}");
+            }
+            b.append("]}");
+        }
+        b.append("]}");
+        return b.toString();
+    }
+}
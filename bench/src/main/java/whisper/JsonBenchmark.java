@@ -0,0 +1,62 @@
+package whisper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSON;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Parsing of the server responses : the whole document, or pulled from the bytes while received
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    @Param({ "1", "200" })
+    public int segments;
+
+    private String response;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setup() {
+        this.response = BenchmarkData.createServerResponse(this.segments);
+        this.responseBytes = this.response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String parse() {
+        return ((JSONObject) JSON.parse(this.response)).optString("text", "");
+    }
+
+    @Benchmark
+    public String pullText() throws IOException {
+        return RemoteWhisperCPP.readText(new ByteArrayInputStream(this.responseBytes));
+    }
+
+    @Benchmark
+    public List<WhisperSegment> pullSegments() throws IOException {
+        return RemoteWhisperCPP.readSegments(new ByteArrayInputStream(this.responseBytes));
+    }
+}
@@ -0,0 +1,45 @@
+package whisper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping of the characters of a transcription to key combinations, for typing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class KeyMappingBenchmark {
+    private static final String TEXT = "Hello World! This is a test. Ah, 123456790; : /\\ ù µ* ¨^ £$¤ +=} °)] &é\"'(-è_çà)= !@# $%^&*  ()[]={}";
+
+    private RobotTyper typer;
+
+    @Setup
+    public void setup() {
+        this.typer = new RobotTyper(null);
+    }
+
+    @Benchmark
+    public int keyMapping() {
+        int found = 0;
+        for (int i = 0; i < TEXT.length(); i++) {
+            if (this.typer.getKeyCombo(TEXT.charAt(i)) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
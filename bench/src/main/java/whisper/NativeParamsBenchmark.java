@@ -0,0 +1,55 @@
+package whisper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.jna.Memory;
+
+import io.github.ggerganov.whispercpp.params.WhisperFullParams;
+
+/**
+ * Writing of the native params before each transcription (native memory only, the whisper library
+ * is not needed)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class NativeParamsBenchmark {
+    private WhisperFullParams params;
+
+    @Setup
+    public void setup() {
+        this.params = new WhisperFullParams(new Memory(4096));
+        this.params.language = "auto";
+        this.params.write();
+    }
+
+    @Benchmark
+    public WhisperFullParams writeFullStructure() {
+        this.params.n_threads = 4;
+        this.params.initial_prompt = "previous text";
+        this.params.write();
+        return this.params;
+    }
+
+    @Benchmark
+    public WhisperFullParams writePerCallFields() {
+        this.params.n_threads = 4;
+        this.params.writeField("n_threads");
+        this.params.writeField("initial_prompt");
+        return this.params;
+    }
+}
@@ -0,0 +1,73 @@
+package whisper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of 10s of 16 bits PCM to the floats of whisper, and level statistics
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PcmBenchmark {
+
+    @Param({ "scalar", "bulk" })
+    public String converter;
+
+    private PcmConverter pcmConverter;
+    private byte[] pcm;
+    private int samples;
+    private float[] floats;
+    private ByteBuffer directPcm;
+    private FloatBuffer directFloats;
+    private final PcmConverter.Stats stats = new PcmConverter.Stats();
+
+    @Setup
+    public void setup() {
+        this.pcmConverter = this.converter.equals("scalar") ? PcmConverter.SCALAR : PcmConverter.BULK;
+        this.pcm = SyntheticAudio.createSpeechLikePcm(10);
+        this.samples = this.pcm.length / 2;
+        this.floats = new float[this.samples];
+        this.directPcm = ByteBuffer.allocateDirect(this.pcm.length);
+        this.directPcm.put(this.pcm);
+        this.directFloats = ByteBuffer.allocateDirect(this.samples * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Benchmark
+    public float[] toFloatsArray() {
+        this.pcmConverter.toFloats(this.pcm, 0, this.samples, this.floats, 0, null);
+        return this.floats;
+    }
+
+    @Benchmark
+    public FloatBuffer toFloatsDirect() {
+        this.directPcm.clear();
+        this.directFloats.clear();
+        this.pcmConverter.toFloats(this.directPcm, this.samples, this.directFloats, null);
+        return this.directFloats;
+    }
+
+    @Benchmark
+    public double stats() {
+        this.stats.reset();
+        this.pcmConverter.analyze(this.pcm, 0, this.samples, this.stats);
+        return this.stats.getRms();
+    }
+}
@@ -0,0 +1,285 @@
+package whisper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks of RemoteEndpointPool with local stand-in servers. Routing : a fast server, a slow one and
+ * one that fails then comes back, then a saturated server answering 503. Hedging : two servers stalling on one request out of 40, without
+ * then with hedging. Streaming upload : a 5s recording sent on a slow link after then during the
+ * recording, to a server accepting chunked uploads (like WhisperServer), then encoded as FLAC during
+ * the recording for a server needing the length (like whisper-server).
+ *
+ * Usage: java -cp bench/target/benchmarks.jar whisper.RemoteEndpointPoolCheck (exit code 1 if a
+ * check fails)
+ */
+public class RemoteEndpointPoolCheck {
+    // Same as RemoteEndpointPool
+    private static final long PROBE_INTERVAL = 5000;
+    private static final long STALL = 2000;
+    private static int failures;
+    // Number of samples in the FLAC header of the last upload, -1 for WAV
+    private static volatile long uploadedSamples;
+
+    /**
+     * Answers and response times of a run
+     */
+    private static final class Run {
+        final Map<String, AtomicInteger> answers = new ConcurrentHashMap<>();
+        long p50;
+        long p99;
+
+        int count(String answer) {
+            final AtomicInteger n = this.answers.get(answer);
+            return n == null ? 0 : n.get();
+        }
+    }
+
+    /**
+     * Stand-in whisper.cpp server, answering after a delay
+     *
+     * @param stallEvery one POST out of stallEvery is answered after 2s, as if behind a long job (0
+     *        for never)
+     * @param readRate upload speed in bytes per second, as on a slow link (0 for unlimited)
+     * @param chunked true to accept the chunked uploads, as WhisperServer
+     */
+    private static HttpServer startServer(final int port, final String name, final long delay, final int stallEvery, final int readRate, final boolean chunked) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        final AtomicInteger posts = new AtomicInteger();
+        server.createContext("/inference", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = exchange.getRequestBody()) {
+                    final byte[] buffer = new byte[4 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        body.write(buffer, 0, n);
+                        // Consume the upload
+                        if (readRate > 0) {
+                            try {
+                                Thread.sleep(n * 1000L / readRate);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                }
+                if (exchange.getRequestMethod().equals("POST")) {
+                    uploadedSamples = getFlacSamples(body.toByteArray());
+                    final boolean stall = stallEvery > 0 && posts.incrementAndGet() % stallEvery == 0;
+                    try {
+                        Thread.sleep(stall ? STALL : delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                final byte[] response = ("{\"text\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8);
+                if (chunked) {
+                    exchange.getResponseHeaders().set(RemoteWhisperCPP.STREAMING_UPLOAD_HEADER, "wav");
+                }
+                try {
+                    exchange.sendResponseHeaders(200, response.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(response);
+                    }
+                } catch (IOException e) {
+                    // Request cancelled by the client
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    /**
+     * Stand-in saturated server, answering 503 with a Retry-After of 1s to the POST requests
+     */
+    private static HttpServer startBusyServer() throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/inference", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    final byte[] buffer = new byte[4 * 1024];
+                    while (in.read(buffer) >= 0) {
+                        // Consume the upload
+                    }
+                }
+                final boolean post = exchange.getRequestMethod().equals("POST");
+                final byte[] response = (post ? "{\"error\":\"busy\"}" : "{}").getBytes(StandardCharsets.UTF_8);
+                if (post) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+                exchange.sendResponseHeaders(post ? 503 : 200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the number of samples in the FLAC header of a request body, -1 if none
+     */
+    private static long getFlacSamples(byte[] body) {
+        final byte[] signature = "fLaC".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i + 26 <= body.length; i++) {
+            if (body[i] == signature[0] && body[i + 1] == signature[1] && body[i + 2] == signature[2] && body[i + 3] == signature[3]) {
+                // STREAMINFO after the signature and the block header : 36 bits at the 148th bit
+                long samples = body[i + 21] & 0x0F;
+                for (int j = 22; j < 26; j++) {
+                    samples = (samples << 8) | (body[i + j] & 0xFF);
+                }
+                return samples;
+            }
+        }
+        return -1;
+    }
+
+    private static Run run(final RemoteEndpointPool pool, final SegmentedAudioStore audio, int requests) throws InterruptedException {
+        final Run run = new Run();
+        final long[] durations = new long[requests];
+        final ExecutorService clients = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < requests; i++) {
+            final int index = i;
+            clients.execute(() -> {
+                final long t = System.currentTimeMillis();
+                try {
+                    final String text = pool.transcribe(audio, 0, 0.0, 0.2, null);
+                    run.answers.computeIfAbsent(text, k -> new AtomicInteger()).incrementAndGet();
+                } catch (IOException e) {
+                    run.answers.computeIfAbsent("error", k -> new AtomicInteger()).incrementAndGet();
+                }
+                durations[index] = System.currentTimeMillis() - t;
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+        Arrays.sort(durations);
+        run.p50 = durations[(int) Math.ceil(0.5 * requests) - 1];
+        run.p99 = durations[(int) Math.ceil(0.99 * requests) - 1];
+        System.out.println("Answers : " + run.answers + ", p50 " + run.p50 + " ms, p99 " + run.p99 + " ms");
+        System.out.print(pool.getStatus());
+        return run;
+    }
+
+    private static void check(boolean ok, String description) {
+        System.out.println((ok ? "PASS " : "FAIL ") + description);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (SegmentedAudioStore audio = new SegmentedAudioStore()) {
+            audio.write(new byte[32000], 0, 32000);
+
+            final HttpServer fast = startServer(0, "fast", 50, 0, 0, false);
+            final HttpServer slow = startServer(0, "slow", 300, 0, 0, false);
+            final HttpServer flaky = startServer(0, "flaky", 50, 0, 0, false);
+            final int flakyPort = flaky.getAddress().getPort();
+            final RemoteEndpointPool pool = new RemoteEndpointPool(getURLs(fast, slow, flaky), 1000, 10000);
+            System.out.println("All servers up");
+            Run run = run(pool, audio, 40);
+            check(run.count("error") == 0, "all servers up : no error");
+            check(run.count("fast") + run.count("flaky") > run.count("slow"), "all servers up : the fast servers answer most requests");
+            flaky.stop(0);
+            System.out.println("Flaky server down");
+            run = run(pool, audio, 40);
+            check(run.count("error") == 0, "flaky server down : no error, the requests go to the other servers");
+            startServer(flakyPort, "flaky", 50, 0, 0, false);
+            Thread.sleep(PROBE_INTERVAL + 1000);
+            System.out.println("Flaky server up again");
+            run = run(pool, audio, 40);
+            check(run.count("error") == 0 && run.count("flaky") > 0, "flaky server up again : it answers again");
+            pool.close();
+
+            final RemoteEndpointPool saturated = new RemoteEndpointPool(getURLs(startBusyServer(), startServer(0, "fast", 50, 0, 0, false)), 1000, 10000);
+            System.out.println("Saturated server");
+            run = run(saturated, audio, 40);
+            check(run.count("error") == 0 && run.count("fast") == 40, "saturated server : no error, the requests go to the other server");
+            boolean ejected = false;
+            for (RemoteEndpointPool.Endpoint e : saturated.getEndpoints()) {
+                ejected |= e.isEjected();
+            }
+            check(!ejected, "saturated server : not ejected");
+            saturated.close();
+
+            final RemoteEndpointPool stalling = new RemoteEndpointPool(getURLs(startServer(0, "a", 100, 40, 0, false), startServer(0, "b", 100, 40, 0, false)), 1000, 10000);
+            System.out.println("Stalling servers, without hedging");
+            final Run unhedged = run(stalling, audio, 200);
+            stalling.setHedging(true);
+            System.out.println("Stalling servers, with hedging");
+            final Run hedged = run(stalling, audio, 200);
+            check(unhedged.p99 >= STALL && hedged.p99 < STALL, "stalling servers : hedging removes the stalls from the p99");
+            stalling.close();
+
+            final byte[] speech = SyntheticAudio.createSpeechLikePcm(5);
+            for (int server = 0; server < 2; server++) {
+                final boolean chunked = server == 0;
+                final String name = chunked ? "chunked link" : "flac link";
+                final RemoteEndpointPool slowLink = new RemoteEndpointPool(getURLs(startServer(0, name, 100, 0, 64 * 1024, chunked)), 1000, 30000);
+                final long[] waits = new long[2];
+                final String[] texts = new String[2];
+                // The regular upload first, the client learns whether the server accepts chunked uploads
+                for (int s = 0; s < 2; s++) {
+                    final boolean streaming = s == 1;
+                    try (SegmentedAudioStore recording = new SegmentedAudioStore()) {
+                        final RemoteEndpointPool.StreamingRequest upload = streaming ? slowLink.startStreamingUpload(recording, 0.0, 0.2) : null;
+                        // Capture in real time, 0.25s at a time
+                        for (int i = 0; i < speech.length; i += 8000) {
+                            recording.write(speech, i, 8000);
+                            Thread.sleep(250);
+                        }
+                        final long t = System.currentTimeMillis();
+                        texts[s] = upload != null ? upload.finish(0, null) : slowLink.transcribe(recording, 0, 0.0, 0.2, null);
+                        waits[s] = System.currentTimeMillis() - t;
+                        System.out.println((streaming ? "Streaming" : "Regular") + " upload on a 64 KB/s " + name + " : answer \"" + texts[s] + "\" " + waits[s]
+                                + " ms after the end of the recording");
+                    }
+                }
+                check(name.equals(texts[0]) && name.equals(texts[1]), name + " : both uploads answered");
+                if (chunked) {
+                    check(uploadedSamples == -1 && waits[1] < waits[0] / 2, name + " : the WAV upload overlaps the recording, the answer comes sooner");
+                } else {
+                    check(uploadedSamples == speech.length / 2, name + " : the FLAC upload declares the exact length, without padding");
+                }
+                slowLink.close();
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static List<String> getURLs(HttpServer... servers) {
+        final List<String> urls = new ArrayList<>();
+        for (HttpServer s : servers) {
+            urls.add("http://127.0.0.1:" + s.getAddress().getPort() + "/inference");
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,74 @@
+package whisper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of a 10s recording and silence detection
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SpeechDetectionBenchmark {
+    private byte[] pcm;
+    private SegmentedAudioStore store;
+
+    @Setup
+    public void setup() throws IOException {
+        this.pcm = SyntheticAudio.createSpeechLikePcm(10);
+        this.store = new SegmentedAudioStore();
+        this.store.write(this.pcm, 0, this.pcm.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.store.close();
+    }
+
+    @Benchmark
+    public float[] storeToFloats() {
+        return this.store.toFloats(0);
+    }
+
+    @Benchmark
+    public boolean containsSpeech() {
+        return SpeechSegmenter.containsSpeech(this.store, new EnergyVoiceActivityDetector());
+    }
+
+    /**
+     * Segmentation of the recording received in 0.1s chunks, like from the microphone
+     */
+    @Benchmark
+    public int segmenter() throws IOException {
+        final int[] count = new int[1];
+        final SpeechSegmenter segmenter = new SpeechSegmenter(new EnergyVoiceActivityDetector(), segment -> {
+            count[0]++;
+            segment.close();
+        });
+        for (int i = 0; i < this.pcm.length; i += 3200) {
+            final byte[] chunk = Arrays.copyOfRange(this.pcm, i, Math.min(this.pcm.length, i + 3200));
+            segmenter.write(chunk, chunk.length);
+        }
+        final SegmentedAudioStore last = segmenter.finish();
+        if (last != null) {
+            last.close();
+        }
+        return count[0];
+    }
+}
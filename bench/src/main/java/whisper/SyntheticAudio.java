@@ -0,0 +1,33 @@
+package whisper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Synthetic 16kHz 16 bits mono audio, for the benchmarks and the checks.
+ */
+final class SyntheticAudio {
+
+    private SyntheticAudio() {
+    }
+
+    /**
+     * @return bursts of noisy tones separated by silences, with a little background noise, always the
+     *         same for a given length
+     */
+    static byte[] createSpeechLikePcm(int seconds) {
+        final Random random = new Random(0);
+        final int samples = seconds * 16000;
+        final ByteBuffer b = ByteBuffer.allocate(samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            final boolean voiced = (i / 8000) % 3 != 2;
+            double v = random.nextGaussian() * 20;
+            if (voiced) {
+                v += 3000 * Math.sin(i * 2 * Math.PI * 180 / 16000) + random.nextGaussian() * 300;
+            }
+            b.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v)));
+        }
+        return b.array();
+    }
+}
@@ -0,0 +1,89 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Transcription of 10s of audio and model loading, with the whisper library and a model (a tiny
+ * model is enough) : -p model=models/ggml-tiny.bin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TranscriptionBenchmark {
+
+    @Param("models/ggml-tiny.bin")
+    public String model;
+
+    private File modelFile;
+    private LocalWhisperCPP whisper;
+    private SegmentedAudioStore store;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        this.modelFile = new File(this.model);
+        if (!this.modelFile.exists()) {
+            throw new IllegalStateException("Model " + this.modelFile.getAbsolutePath() + " not found, use -p model=file.bin");
+        }
+        this.whisper = new LocalWhisperCPP(this.modelFile, 1);
+        this.whisper.warmUpNow();
+        final byte[] pcm = SyntheticAudio.createSpeechLikePcm(10);
+        this.store = new SegmentedAudioStore();
+        this.store.write(pcm, 0, pcm.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.store != null) {
+            this.store.close();
+        }
+        if (this.whisper != null) {
+            this.whisper.release();
+        }
+    }
+
+    @Benchmark
+    public String dictation() throws IOException {
+        return this.whisper.transcribe(this.store, 16000);
+    }
+
+    @Benchmark
+    public List<WhisperSegment> streaming() throws IOException {
+        final WhisperStatePool.State state = this.whisper.acquireState();
+        try {
+            return this.whisper.transcribe(state, DecodingProfile.STREAMING, this.store, 0, this.store.size(), 16000, null);
+        } finally {
+            this.whisper.releaseState(state);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public LocalWhisperCPP loadModel() throws IOException {
+        final LocalWhisperCPP loaded = new LocalWhisperCPP(this.modelFile, 1);
+        loaded.release();
+        return loaded;
+    }
+}
@@ -0,0 +1,122 @@
+package whisper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of a recording for the servers : WAV, FLAC and multipart request bodies. The recording is
+ * 10s of synthetic speech, or an audio file given with -p audio=file.wav (converted to 16kHz mono).
+ * The FLAC compression ratio is printed at the setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class UploadBenchmark {
+    private static final AudioFormat FORMAT = new AudioFormat(16000, 16, 1, true, false);
+
+    @Param({ "" })
+    public String audio;
+
+    private byte[] pcm;
+    private SegmentedAudioStore store;
+    private File wav;
+    private byte[] flac;
+
+    @Setup
+    public void setup() throws IOException, UnsupportedAudioFileException {
+        this.pcm = this.audio.isEmpty() ? SyntheticAudio.createSpeechLikePcm(10) : readPcm(new File(this.audio));
+        this.store = new SegmentedAudioStore();
+        this.store.write(this.pcm, 0, this.pcm.length);
+        this.wav = File.createTempFile("bench", ".wav");
+        try (FileOutputStream out = new FileOutputStream(this.wav)) {
+            AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(this.pcm), FORMAT, this.pcm.length / 2), AudioFileFormat.Type.WAVE, out);
+        }
+        this.flac = FlacEncoder.encode(this.store, this.store.size());
+        System.out.println(String.format(Locale.ROOT, "%.1fs of audio, FLAC %d bytes for %d bytes of PCM (%.1f%%)", this.pcm.length / 32000.0, this.flac.length, this.pcm.length,
+                100.0 * this.flac.length / this.pcm.length));
+    }
+
+    private static byte[] readPcm(File file) throws IOException, UnsupportedAudioFileException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = AudioFileDecoder.open(file)) {
+            final byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        // Whole samples only
+        return Arrays.copyOf(out.toByteArray(), out.size() & ~1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.store.close();
+        this.wav.delete();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream wavAudioSystemWrite() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(this.pcm.length + 44);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(this.pcm), FORMAT, this.pcm.length / 2), AudioFileFormat.Type.WAVE, out);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] flacEncode() throws IOException {
+        return FlacEncoder.encode(this.store, this.store.size());
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream multipartBodyFile() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(this.pcm.length + 1024);
+        RemoteWhisperCPP.writeBody(out, this.wav, 0.0, 0.2, "json");
+        return out;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream multipartBodyMemory() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(this.pcm.length + 1024);
+        RemoteWhisperCPP.writeBody(out, this.store, this.store.size(), 0.0, 0.2, "json");
+        return out;
+    }
+
+    /**
+     * Body of an already encoded FLAC recording, add flacEncode for the whole upload cost
+     */
+    @Benchmark
+    public ByteArrayOutputStream multipartBodyFlac() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(this.flac.length + 1024);
+        RemoteWhisperCPP.writeBody(out, this.flac, 0.0, 0.2, "json");
+        return out;
+    }
+}
@@ -3,6 +3,7 @@ package io.github.ggerganov.whispercpp;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,6 +11,7 @@ import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
 import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+import io.github.ggerganov.whispercpp.model.WhisperModelLoader;
 import io.github.ggerganov.whispercpp.params.WhisperContextParams;
 import io.github.ggerganov.whispercpp.params.WhisperFullParams;
 import io.github.ggerganov.whispercpp.params.WhisperSamplingStrategy;
@@ -53,6 +55,21 @@ public class WhisperCpp implements AutoCloseable {
         }
     }
 
+    /**
+     * Load the model with the given loader, the model is read from the loader callbacks
+     */
+    public void initContext(WhisperModelLoader loader) throws FileNotFoundException {
+        if (ctx != null) {
+            lib.whisper_free(ctx);
+        }
+
+        ctx = lib.whisper_init_with_params(loader, getContextDefaultParams());
+
+        if (ctx == null) {
+            throw new FileNotFoundException(loader.isCancelled() ? "model loading cancelled" : "cannot load model");
+        }
+    }
+
     /**
      * @param modelPath - absolute path, or just the name (eg: "base", "base-en" or "base.en")
      * @param params - params to use when initialising the context
@@ -122,6 +139,20 @@ public class WhisperCpp implements AutoCloseable {
         return params;
     }
 
+    /**
+     * Same as getFullDefaultParams() but the params are allocated for the caller only, so they can
+     * be used concurrently with other params. The caller must call `freeFullParams(params)`.
+     */
+    public WhisperFullParams newFullDefaultParams(WhisperSamplingStrategy strategy) {
+        WhisperFullParams params = new WhisperFullParams(lib.whisper_full_default_params_by_ref(strategy.ordinal()));
+        params.read();
+        return params;
+    }
+
+    public void freeFullParams(WhisperFullParams params) {
+        lib.whisper_free_params(params.getPointer());
+    }
+
     @Override
     public void close() {
         freeContext();
@@ -197,6 +228,141 @@ public class WhisperCpp implements AutoCloseable {
         return segments;
     }
 
+    /**
+     * Allocate a new state for the current context. States share the model weights of the context,
+     * the caller must free it with `freeState(state)` before the context is freed.
+     */
+    public Pointer initState() {
+        if (ctx == null) {
+            throw new IllegalStateException("Model not initialised");
+        }
+        Pointer state = lib.whisper_init_state(ctx);
+        if (state == null) {
+            throw new IllegalStateException("Cannot allocate whisper state");
+        }
+        return state;
+    }
+
+    public void freeState(Pointer state) {
+        if (state != null) {
+            lib.whisper_free_state(state);
+        }
+    }
+
+    /**
+     * Same as fullTranscribe() but using the given state instead of the default state of the
+     * context. Thread safe as long as each thread uses its own state.
+     */
+    public String fullTranscribe(Pointer state, WhisperFullParams whisperParams, float[] audioData) throws IOException {
+        if (ctx == null) {
+            throw new IllegalStateException("Model not initialised");
+        }
+
+        if (lib.whisper_full_with_state(ctx, state, whisperParams, audioData, audioData.length) != 0) {
+            throw new IOException("Failed to process audio");
+        }
+
+        return getText(state);
+    }
+
+    /**
+     * Same as fullTranscribe(Pointer, WhisperFullParams, float[]) but with the samples in a direct
+     * buffer, from its position to its limit. The samples are not copied.
+     */
+    public String fullTranscribe(Pointer state, WhisperFullParams whisperParams, FloatBuffer audioData) throws IOException {
+        return fullTranscribe(state, whisperParams, getPointer(audioData), audioData.remaining());
+    }
+
+    /**
+     * Same as fullTranscribe(Pointer, WhisperFullParams, float[]) but with the samples in native
+     * memory. The samples are not copied.
+     */
+    public String fullTranscribe(Pointer state, WhisperFullParams whisperParams, Pointer audioData, int nSamples) throws IOException {
+        if (ctx == null) {
+            throw new IllegalStateException("Model not initialised");
+        }
+
+        if (lib.whisper_full_with_state(ctx, state, whisperParams, audioData, nSamples) != 0) {
+            throw new IOException("Failed to process audio");
+        }
+
+        return getText(state);
+    }
+
+    private String getText(Pointer state) {
+        int nSegments = lib.whisper_full_n_segments_from_state(state);
+
+        StringBuilder str = new StringBuilder();
+
+        for (int i = 0; i < nSegments; i++) {
+            String text = lib.whisper_full_get_segment_text_from_state(state, i);
+            str.append(text);
+        }
+
+        return str.toString().trim();
+    }
+
+    /**
+     * Same as fullTranscribeWithTime() but using the given state instead of the default state of the
+     * context. Thread safe as long as each thread uses its own state.
+     */
+    public List<WhisperSegment> fullTranscribeWithTime(Pointer state, WhisperFullParams whisperParams, float[] audioData) throws IOException {
+        if (ctx == null) {
+            throw new IllegalStateException("Model not initialised");
+        }
+
+        if (lib.whisper_full_with_state(ctx, state, whisperParams, audioData, audioData.length) != 0) {
+            throw new IOException("Failed to process audio");
+        }
+
+        return getSegments(state);
+    }
+
+    /**
+     * Same as fullTranscribeWithTime(Pointer, WhisperFullParams, float[]) but with the samples in a
+     * direct buffer, from its position to its limit. The samples are not copied.
+     */
+    public List<WhisperSegment> fullTranscribeWithTime(Pointer state, WhisperFullParams whisperParams, FloatBuffer audioData) throws IOException {
+        return fullTranscribeWithTime(state, whisperParams, getPointer(audioData), audioData.remaining());
+    }
+
+    /**
+     * Same as fullTranscribeWithTime(Pointer, WhisperFullParams, float[]) but with the samples in
+     * native memory. The samples are not copied.
+     */
+    public List<WhisperSegment> fullTranscribeWithTime(Pointer state, WhisperFullParams whisperParams, Pointer audioData, int nSamples) throws IOException {
+        if (ctx == null) {
+            throw new IllegalStateException("Model not initialised");
+        }
+
+        if (lib.whisper_full_with_state(ctx, state, whisperParams, audioData, nSamples) != 0) {
+            throw new IOException("Failed to process audio");
+        }
+
+        return getSegments(state);
+    }
+
+    private List<WhisperSegment> getSegments(Pointer state) {
+        int nSegments = lib.whisper_full_n_segments_from_state(state);
+        List<WhisperSegment> segments = new ArrayList<>(nSegments);
+
+        for (int i = 0; i < nSegments; i++) {
+            long t0 = lib.whisper_full_get_segment_t0_from_state(state, i);
+            String text = lib.whisper_full_get_segment_text_from_state(state, i);
+            long t1 = lib.whisper_full_get_segment_t1_from_state(state, i);
+            segments.add(new WhisperSegment(t0, t1, text));
+        }
+
+        return segments;
+    }
+
+    private static Pointer getPointer(FloatBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("not a direct buffer");
+        }
+        return Native.getDirectBufferPointer(buffer).share(4L * buffer.position());
+    }
+
     // public int getTextSegmentCount(Pointer ctx) {
     // return lib.whisper_full_n_segments(ctx);
     // }
@@ -59,6 +59,15 @@ public interface WhisperCppJnaLibrary extends Library {
      */
     Pointer whisper_init(WhisperModelLoader loader);
 
+    /**
+     * Allocate (almost) all memory needed for the model using a model loader.
+     *
+     * @param loader Model loader
+     * @param params Pointer to whisper_context_params
+     * @return Whisper context on success, null on failure
+     */
+    Pointer whisper_init_with_params(WhisperModelLoader loader, WhisperContextParams params);
+
     /**
      * Allocate (almost) all memory needed for the model by loading from a file without allocating
      * the state.
@@ -302,6 +311,13 @@ public interface WhisperCppJnaLibrary extends Library {
 
     int whisper_full_with_state(Pointer ctx, Pointer state, WhisperFullParams params, final float[] samples, int n_samples);
 
+    /**
+     * Same as whisper_full() but the samples are already in native memory (not copied).
+     */
+    int whisper_full(Pointer ctx, WhisperFullParams params, Pointer samples, int n_samples);
+
+    int whisper_full_with_state(Pointer ctx, Pointer state, WhisperFullParams params, Pointer samples, int n_samples);
+
     // Split the input audio in chunks and process each chunk separately using
     // whisper_full_with_state()
     // Result is stored in the default state of the context
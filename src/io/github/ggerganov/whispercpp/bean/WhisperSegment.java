@@ -1,11 +1,15 @@
 package io.github.ggerganov.whispercpp.bean;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Created by litonglinux@qq.com on 10/21/2023_7:48 AM
  */
 public class WhisperSegment {
   private long start, end;
   private String sentence;
+  private List<WhisperToken> tokens = Collections.emptyList();
 
   public WhisperSegment() {
   }
@@ -40,6 +44,17 @@ public class WhisperSegment {
     this.sentence = sentence;
   }
 
+  /**
+   * @return the tokens with their probabilities, empty if not known
+   */
+  public List<WhisperToken> getTokens() {
+    return tokens;
+  }
+
+  public void setTokens(List<WhisperToken> tokens) {
+    this.tokens = tokens;
+  }
+
   @Override
   public String toString() {
     return "[" + start + " --> " + end + "]:" + sentence;
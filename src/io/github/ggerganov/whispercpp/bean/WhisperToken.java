@@ -0,0 +1,67 @@
+package io.github.ggerganov.whispercpp.bean;
+
+/**
+ * A token of a segment, times in centiseconds (-1 if unknown).
+ */
+public class WhisperToken {
+  private int id;
+  private String text;
+  private long start = -1, end = -1;
+  private float probability;
+
+  public WhisperToken() {
+  }
+
+  public WhisperToken(int id, String text, long start, long end, float probability) {
+    this.id = id;
+    this.text = text;
+    this.start = start;
+    this.end = end;
+    this.probability = probability;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public float getProbability() {
+    return probability;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  public void setText(String text) {
+    this.text = text;
+  }
+
+  public void setStart(long start) {
+    this.start = start;
+  }
+
+  public void setEnd(long end) {
+    this.end = end;
+  }
+
+  public void setProbability(float probability) {
+    this.probability = probability;
+  }
+
+  @Override
+  public String toString() {
+    return text + " (" + id + ", p=" + probability + ")";
+  }
+}
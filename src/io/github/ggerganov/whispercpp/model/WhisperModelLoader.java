@@ -1,55 +1,107 @@
 package io.github.ggerganov.whispercpp.model;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
 import com.sun.jna.Callback;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
+import io.github.ggerganov.whispercpp.params.SizeT;
 
+/**
+ * Model loader for whisper_init_with_params(), reading the model from memory mapped files, so the
+ * loading progress is available and the loading can be cancelled.
+ *
+ * whisper copies the bytes given to the read callback into its own tensor buffers: each loaded
+ * model has its own copy of the weights, two instances (or processes) do not share physical pages,
+ * and loading a model again is as fast as reading the file through the page cache, no faster.
+ */
 public class WhisperModelLoader extends Structure {
+    // Mapping size (a MappedByteBuffer is limited to 2GB)
+    private static final int CHUNK_SIZE = 1 << 30;
+    // Cancellation is only applied when reading the tensors, after the headers and the vocabulary
+    private static final long MIN_CANCEL_POSITION = 16L * 1024 * 1024;
+
     public Pointer context;
-    public ReadFunction read;
-    public EOFFunction eof;
-    public CloseFunction close;
-
-    public static class ReadFunction implements Callback {
-        public Pointer invoke(Pointer ctx, Pointer output, int readSize) {
-            // TODO
-            return ctx;
+    public ReadCallback read;
+    public EOFCallback eof;
+    public CloseCallback close;
+
+    private final long length;
+    private MappedByteBuffer[] chunks;
+    private volatile long position;
+    private volatile boolean cancelled;
+
+    public WhisperModelLoader(File file) throws IOException {
+        super();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            this.length = channel.size();
+            this.chunks = new MappedByteBuffer[(int) ((this.length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < this.chunks.length; i++) {
+                final long start = (long) i * CHUNK_SIZE;
+                this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, this.length - start));
+            }
         }
+        this.read = (ctx, output, readSize) -> new SizeT(readTo(output, readSize.longValue()));
+        this.eof = ctx -> isStopped() || this.position >= this.length;
+        this.close = ctx -> this.chunks = null;
     }
 
-    public static class EOFFunction implements Callback {
-        public boolean invoke(Pointer ctx) {
-            // TODO
-            return false;
+    private long readTo(Pointer output, long size) {
+        if (isStopped()) {
+            // Zeros and eof, so whisper stops loading cleanly
+            output.setMemory(0, size, (byte) 0);
+            return 0;
+        }
+        long done = 0;
+        while (done < size && this.position < this.length) {
+            final ByteBuffer chunk = this.chunks[(int) (this.position / CHUNK_SIZE)].duplicate();
+            chunk.position((int) (this.position % CHUNK_SIZE));
+            final int n = (int) Math.min(size - done, chunk.remaining());
+            chunk.limit(chunk.position() + n);
+            output.getByteBuffer(done, n).put(chunk);
+            done += n;
+            this.position += n;
         }
+        return done;
     }
 
-    public static class CloseFunction implements Callback {
-        public void invoke(Pointer ctx) {
-            // TODO
-        }
+    /**
+     * @return the part of the model already read, from 0 to 1
+     */
+    public float getProgress() {
+        return this.length == 0 ? 1f : (float) this.position / this.length;
     }
 
-//    public WhisperModelLoader(Pointer p) {
-//        super(p);
-//        read = new ReadFunction();
-//        eof = new EOFFunction();
-//        close = new CloseFunction();
-//        read.setCallback(this);
-//        eof.setCallback(this);
-//        close.setCallback(this);
-//        read.write();
-//        eof.write();
-//        close.write();
-//    }
-
-    public WhisperModelLoader() {
-        super();
+    /**
+     * Stop the loading, the whisper_init_...() call fails.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    private boolean isStopped() {
+        return this.cancelled && this.position >= MIN_CANCEL_POSITION;
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("context", "read", "eof", "close");
     }
 
     public interface ReadCallback extends Callback {
-        Pointer invoke(Pointer ctx, Pointer output, int readSize);
+        SizeT invoke(Pointer ctx, Pointer output, SizeT readSize);
     }
 
     public interface EOFCallback extends Callback {
@@ -0,0 +1,19 @@
+package io.github.ggerganov.whispercpp.params;
+
+import com.sun.jna.IntegerType;
+import com.sun.jna.Native;
+
+/**
+ * C size_t (4 or 8 bytes depending on the platform).
+ */
+public class SizeT extends IntegerType {
+    private static final long serialVersionUID = 1L;
+
+    public SizeT() {
+        this(0);
+    }
+
+    public SizeT(long value) {
+        super(Native.SIZE_T_SIZE, value, true);
+    }
+}
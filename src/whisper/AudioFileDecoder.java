@@ -0,0 +1,78 @@
+package whisper;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decoding of audio files (the formats of Java Sound : WAV, AIFF, AU) to 16kHz 16 bits mono PCM, the
+ * format of the recordings. The audio is read until the end of the stream, whatever its declared
+ * length.
+ */
+public final class AudioFileDecoder {
+    // 16kHz 16 bits mono PCM, little endian
+    public static final AudioFormat FORMAT = new AudioFormat(16000, 16, 1, true, false);
+
+    private AudioFileDecoder() {
+    }
+
+    /**
+     * Decode a file, converting the sample rate and the channels if needed.
+     *
+     * @param audio where the PCM audio is appended
+     */
+    public static void decode(File file, SegmentedAudioStore audio) throws UnsupportedAudioFileException, IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            decode(in, audio);
+        }
+    }
+
+    /**
+     * Same as decode(File, SegmentedAudioStore), the stream must support mark() and is not closed.
+     *
+     * @throws UnsupportedAudioFileException if the format is unknown or can't be converted
+     */
+    public static void decode(InputStream in, SegmentedAudioStore audio) throws UnsupportedAudioFileException, IOException {
+        final AudioInputStream stream = open(in);
+        final byte[] buffer = new byte[16 * 1024];
+        int n;
+        while ((n = stream.read(buffer)) > 0) {
+            audio.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Open a file to read it as 16kHz 16 bits mono PCM, without decoding it all at once.
+     */
+    public static AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            return open(in);
+        } catch (UnsupportedAudioFileException | IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as open(File), the stream must support mark().
+     */
+    public static AudioInputStream open(InputStream in) throws UnsupportedAudioFileException, IOException {
+        final AudioInputStream stream = AudioSystem.getAudioInputStream(in);
+        if (stream.getFormat().matches(FORMAT)) {
+            return stream;
+        }
+        try {
+            return AudioSystem.getAudioInputStream(FORMAT, stream);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedAudioFileException("cannot convert " + stream.getFormat() + " to " + FORMAT);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Fixed size audio segments shared by all the recordings.
+ *
+ * Segments are direct buffers (outside of the Java heap) until the spill threshold is reached,
+ * then regions of a memory mapped temporary file. Released segments are kept and reused by the
+ * next recordings.
+ */
+public class AudioSegmentPool {
+    // 8s of 16kHz 16 bits mono audio
+    public static final int SEGMENT_SIZE = 256 * 1024;
+    private static final long DEFAULT_SPILL_THRESHOLD = 32L * 1024 * 1024;
+
+    private static AudioSegmentPool instance;
+
+    private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+    private final Deque<ByteBuffer> freeMemorySegments = new ArrayDeque<>();
+    private int memorySegmentCount;
+
+    private final Deque<ByteBuffer> freeFileSegments = new ArrayDeque<>();
+    private final Set<ByteBuffer> fileSegments = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    private File spillFile;
+    private FileChannel spillChannel;
+
+    public static synchronized AudioSegmentPool getInstance() {
+        if (instance == null) {
+            instance = new AudioSegmentPool();
+        }
+        return instance;
+    }
+
+    /**
+     * @param bytes memory used by the segments before spilling to disk
+     */
+    public synchronized void setSpillThreshold(long bytes) {
+        this.spillThreshold = bytes;
+    }
+
+    public synchronized long getSpillThreshold() {
+        return this.spillThreshold;
+    }
+
+    /**
+     * @return an empty segment, in little endian order
+     */
+    public synchronized ByteBuffer acquire() throws IOException {
+        ByteBuffer b = this.freeMemorySegments.poll();
+        if (b == null && (this.memorySegmentCount + 1L) * SEGMENT_SIZE <= this.spillThreshold) {
+            b = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+            this.memorySegmentCount++;
+        }
+        if (b == null) {
+            b = this.freeFileSegments.poll();
+        }
+        if (b == null) {
+            b = mapFileSegment();
+        }
+        b.clear();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        return b;
+    }
+
+    public synchronized void release(ByteBuffer b) {
+        b.clear();
+        if (this.fileSegments.contains(b)) {
+            this.freeFileSegments.push(b);
+        } else {
+            this.freeMemorySegments.push(b);
+        }
+    }
+
+    private ByteBuffer mapFileSegment() throws IOException {
+        if (this.spillChannel == null) {
+            this.spillFile = File.createTempFile("mister-whisper-audio", ".raw");
+            this.spillFile.deleteOnExit();
+            @SuppressWarnings("resource")
+            final RandomAccessFile raf = new RandomAccessFile(this.spillFile, "rw");
+            this.spillChannel = raf.getChannel();
+            System.out.println("Long recording, audio spilled to : " + this.spillFile.getAbsolutePath());
+        }
+        final ByteBuffer b = this.spillChannel.map(FileChannel.MapMode.READ_WRITE, (long) this.fileSegments.size() * SEGMENT_SIZE, SEGMENT_SIZE);
+        this.fileSegments.add(b);
+        return b;
+    }
+}
@@ -0,0 +1,573 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.prefs.Preferences;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+import io.github.ggerganov.whispercpp.params.WhisperSamplingStrategy;
+
+/**
+ * Transcription of many audio files with the local model, for example recorded voice notes.
+ *
+ * The files are decoded by a few decoder threads (the producer stage) into a bounded queue, so the
+ * decoding overlaps the transcriptions and only a few decoded files are in memory. One worker per
+ * whisper state takes the files from the queue and writes the transcription next to each file, or
+ * in the output directory (same relative paths), as text or as JSON (the verbose_json of the
+ * server). Existing outputs are skipped, so an interrupted batch can be run again. The files longer
+ * than 5 minutes are given to whisper one 30s window at a time (see LongFormTranscriber), so a long
+ * recording does not leave a large native samples buffer in each state for the rest of the batch.
+ *
+ * The transcriptions are kept in a transcript cache, by a hash of the decoded audio, of the model and
+ * of the decoding profile : a batch run again (with --overwrite, another format or another output
+ * directory) only transcribes the files not already transcribed with the same settings.
+ *
+ * The completed files are recorded in a checkpoint journal, keyed to the run (a hash of the inputs,
+ * output directory, format, model and profile) and removed when the batch ends : the same batch
+ * interrupted by a crash is run again without the files already done, even with --overwrite. The
+ * journal of another batch is ignored, and so are the records of outputs written before its run.
+ *
+ * Usage: java -cp ... whisper.BatchTranscriber [--model file.bin] [--states n] [--decoders n]
+ * [--format text|json] [--output dir] [--overwrite] [--cache dir] [--cache-size mb] [--no-cache]
+ * [--journal file] directory|file|glob...
+ */
+public class BatchTranscriber {
+    // Beam search like the dictation, without progress output
+    static final DecodingProfile BATCH = new DecodingProfile(WhisperSamplingStrategy.WHISPER_SAMPLING_BEAM_SEARCH, "auto", true, false);
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList("wav", "wave", "aif", "aiff", "aifc", "au", "snd"));
+    // whisper ignores the audio shorter than 1s
+    private static final int MIN_SAMPLES = 16000 + 1600;
+    // Longer files are given to whisper one window at a time (see LongFormTranscriber), so the
+    // samples buffer of a state does not keep the size of the longest file, in bytes
+    private static final long LONG_FILE_SIZE = 5 * 60 * 32000L;
+    private static final long REPORT_INTERVAL = 10000;
+
+    public enum OutputFormat {
+        TEXT("txt"), JSON("json");
+
+        private final String extension;
+
+        OutputFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return this.extension;
+        }
+    }
+
+    /**
+     * A file to transcribe
+     */
+    static final class Job {
+        final File input;
+        final File output;
+        SegmentedAudioStore audio;
+        long decodingTime;
+        // Key in the transcript cache
+        String key;
+
+        Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    // Tells a worker to stop
+    private static final Job END = new Job(null, null);
+
+    private final LocalWhisperCPP whisper;
+    private final OutputFormat format;
+    private final int decoders;
+    private TranscriptCache cache;
+    private File model;
+    private CheckpointJournal journal;
+    // Statistics, guarded by this
+    private long startTime;
+    private long lastReport;
+    private int total;
+    private int done;
+    private int failed;
+    private int cached;
+    private long audioBytes;
+    private long transcriptionTime;
+
+    /**
+     * @param whisper the model, one worker per parallel transcription
+     * @param decoders number of threads decoding the files
+     */
+    public BatchTranscriber(LocalWhisperCPP whisper, OutputFormat format, int decoders) {
+        if (decoders < 1) {
+            throw new IllegalArgumentException("invalid decoder count " + decoders);
+        }
+        this.whisper = whisper;
+        this.format = format;
+        this.decoders = decoders;
+    }
+
+    /**
+     * Use a transcript cache, the keys include the model
+     */
+    public void setCache(TranscriptCache cache, File model) {
+        this.cache = cache;
+        this.model = model;
+    }
+
+    /**
+     * Record the completed files in a journal
+     */
+    public void setJournal(CheckpointJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Transcribe the files, returns when all are done.
+     *
+     * @return the number of files that failed
+     */
+    public int run(final List<Job> jobs) throws InterruptedException {
+        final int workers = this.whisper.getParallelTranscriptions();
+        // Decoded files waiting for a worker
+        final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(workers * 2);
+        synchronized (this) {
+            this.startTime = System.currentTimeMillis();
+            this.lastReport = this.startTime;
+            this.total = jobs.size();
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger runningDecoders = new AtomicInteger(this.decoders);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < this.decoders; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    int index;
+                    while ((index = next.getAndIncrement()) < jobs.size()) {
+                        final Job job = jobs.get(index);
+                        if (decode(job)) {
+                            queue.put(job);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (runningDecoders.decrementAndGet() == 0) {
+                        // The last decoder stops the workers
+                        try {
+                            for (int j = 0; j < workers; j++) {
+                                queue.put(END);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, "batch-decoder-" + i));
+        }
+        for (int i = 0; i < workers; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    Job job;
+                    while ((job = queue.take()) != END) {
+                        transcribe(job);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "batch-worker-" + i));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            throw e;
+        }
+        if (this.cache != null) {
+            try {
+                this.cache.flush();
+            } catch (IOException e) {
+                System.out.println("Cannot write the index of the " + this.cache + " : " + e.getMessage());
+            }
+            System.out.println(this.cache);
+        }
+        synchronized (this) {
+            System.out.println("Batch done : " + getReport());
+            return this.failed;
+        }
+    }
+
+    /**
+     * @return false if the file can't be decoded
+     */
+    private boolean decode(Job job) {
+        final long t = System.currentTimeMillis();
+        final SegmentedAudioStore audio = new SegmentedAudioStore();
+        try {
+            AudioFileDecoder.decode(job.input, audio);
+            if (this.cache != null) {
+                // Hashed here rather than in the workers, which keep the model busy
+                job.key = TranscriptCache.getKey(audio, this.model, BATCH);
+            }
+            job.audio = audio;
+            job.decodingTime = System.currentTimeMillis() - t;
+            return true;
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            // A bug on a file must not stop the decoder, the workers would wait for it
+            audio.close();
+            fileFailed(job, e);
+            return false;
+        }
+    }
+
+    private void transcribe(Job job) {
+        final long t = System.currentTimeMillis();
+        try {
+            if (job.key != null) {
+                final List<WhisperSegment> segments = this.cache.get(job.key);
+                if (segments != null) {
+                    write(job, segments);
+                    journal(job);
+                    fileCached(job);
+                    return;
+                }
+            }
+            final List<WhisperSegment> segments;
+            if (job.audio.size() > LONG_FILE_SIZE) {
+                try (InputStream in = job.audio.newInputStream()) {
+                    segments = new LongFormTranscriber(this.whisper, BATCH).transcribeToList(in);
+                }
+            } else {
+                final WhisperStatePool.State state = this.whisper.acquireState();
+                try {
+                    segments = this.whisper.transcribe(state, BATCH, job.audio, 0, job.audio.size(), MIN_SAMPLES, null);
+                } finally {
+                    this.whisper.releaseState(state);
+                }
+            }
+            if (job.key != null) {
+                try {
+                    this.cache.put(job.key, segments);
+                } catch (IOException e) {
+                    System.out.println("Cannot cache the transcription of " + job.input.getPath() + " : " + e.getMessage());
+                }
+            }
+            write(job, segments);
+            journal(job);
+            fileDone(job, System.currentTimeMillis() - t);
+        } catch (IOException | RuntimeException e) {
+            // A bug on a file must not stop the worker, the decoders would wait for it
+            fileFailed(job, e);
+        } finally {
+            job.audio.close();
+            job.audio = null;
+        }
+    }
+
+    /**
+     * Write the output, through a temporary file so an interrupted batch leaves no partial output
+     */
+    private void write(Job job, List<WhisperSegment> segments) throws IOException {
+        final String content;
+        if (this.format == OutputFormat.JSON) {
+            content = WhisperServer.toVerboseJson(segments, job.audio.size() / 32000.0).put("file", job.input.getPath()).toString();
+        } else {
+            final StringBuilder text = new StringBuilder();
+            for (WhisperSegment s : segments) {
+                text.append(s.getSentence());
+            }
+            content = text.toString().trim() + System.lineSeparator();
+        }
+        final File dir = job.output.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        final File tmp = new File(dir, job.output.getName() + ".tmp");
+        Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), job.output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void journal(Job job) throws IOException {
+        if (this.journal != null) {
+            this.journal.fileDone(job.output.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return true if the journal of an interrupted batch has the file, and its output was written
+     *         by that batch
+     */
+    static boolean isDone(Job job, CheckpointJournal journal) {
+        // Not synced outputs may be empty after a crash of the system. The dates of the files may
+        // have a precision of one second.
+        return journal.isDone(job.output.getAbsolutePath()) && job.output.length() > 0 && job.output.lastModified() >= journal.getRunStart() / 1000 * 1000;
+    }
+
+    /**
+     * @return the identifier of a batch, a hash of its settings : the same command gives the same
+     *         identifier, as long as the model is not changed
+     */
+    static String getRunKey(List<String> inputs, File outputDir, OutputFormat format, boolean overwrite, File model) {
+        final StringBuilder settings = new StringBuilder();
+        final List<String> sorted = new ArrayList<>();
+        for (String input : inputs) {
+            sorted.add(new File(input).getAbsolutePath());
+        }
+        Collections.sort(sorted);
+        for (String input : sorted) {
+            settings.append(input).append('\n');
+        }
+        settings.append(outputDir == null ? "" : outputDir.getAbsolutePath()).append('\n');
+        settings.append(format).append(' ').append(overwrite).append('\n');
+        settings.append(model.getAbsolutePath()).append(' ').append(model.length()).append(' ').append(model.lastModified()).append('\n');
+        settings.append(BATCH.getKey()).append('\n');
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(settings.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            b.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    private synchronized void fileDone(Job job, long duration) {
+        this.done++;
+        this.audioBytes += job.audio.size();
+        this.transcriptionTime += duration;
+        System.out.println(String.format(Locale.ROOT, "[%d/%d] %s : %.1fs of audio, decoded in %d ms, transcribed in %d ms", this.done + this.failed, this.total, job.input.getPath(),
+                job.audio.size() / 32000.0, job.decodingTime, duration));
+        report();
+    }
+
+    private synchronized void fileCached(Job job) {
+        this.done++;
+        this.cached++;
+        System.out.println(String.format(Locale.ROOT, "[%d/%d] %s : %.1fs of audio, decoded in %d ms, from the cache", this.done + this.failed, this.total, job.input.getPath(),
+                job.audio.size() / 32000.0, job.decodingTime));
+        report();
+    }
+
+    private synchronized void fileFailed(Job job, Exception e) {
+        this.failed++;
+        // The message of a bug alone may be null
+        System.out.println("[" + (this.done + this.failed) + "/" + this.total + "] " + job.input.getPath() + " failed : " + (e instanceof RuntimeException ? e.toString() : e.getMessage()));
+        report();
+    }
+
+    private void report() {
+        final long now = System.currentTimeMillis();
+        if (now - this.lastReport >= REPORT_INTERVAL) {
+            this.lastReport = now;
+            System.out.println(getReport());
+        }
+    }
+
+    /**
+     * @return the throughput since the start : files per minute and real time factor (processing
+     *         time divided by the duration of the audio, lower is faster). The files read from the
+     *         cache are not in the audio duration.
+     */
+    private String getReport() {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - this.startTime);
+        final double audioSeconds = this.audioBytes / 32000.0;
+        final StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT, "%d/%d files (%d failed, %d from the cache) in %.1fs, %.1f files/min, %.1f min of audio transcribed", this.done + this.failed, this.total, this.failed,
+                this.cached, elapsed / 1000.0, this.done * 60000.0 / elapsed, audioSeconds / 60));
+        if (audioSeconds > 0) {
+            // Wall clock for the throughput, per transcription for the speed of the model
+            b.append(String.format(Locale.ROOT, ", real time factor %.3f (%.3f per transcription)", elapsed / 1000.0 / audioSeconds, this.transcriptionTime / 1000.0 / audioSeconds));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Add the jobs of a command line argument : a file, a directory (its audio files, recursively) or
+     * a glob (for example notes/2025-*.wav or notes/**.wav).
+     *
+     * @param outputDir where the outputs are written (same relative paths as the inputs), null to
+     *            write them next to the inputs
+     * @param overwrite false to skip the files already transcribed
+     */
+    static void addJobs(String arg, File outputDir, OutputFormat format, boolean overwrite, List<Job> jobs) throws IOException {
+        final Path base;
+        final List<Path> files;
+        final int glob = indexOfGlob(arg);
+        if (glob >= 0) {
+            // Walk from the directory before the first wildcard
+            final int separator = Math.max(arg.lastIndexOf('/', glob), arg.lastIndexOf(File.separatorChar, glob));
+            base = Paths.get(separator < 0 ? "." : arg.substring(0, separator + 1));
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg.substring(separator + 1));
+            files = walk(base, p -> matcher.matches(base.relativize(p)));
+        } else {
+            final Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                base = path;
+                files = walk(base, BatchTranscriber::isAudioFile);
+            } else if (Files.exists(path)) {
+                base = path.toAbsolutePath().getParent();
+                files = Collections.singletonList(path.toAbsolutePath());
+            } else {
+                throw new IOException(arg + " not found");
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("No audio file for " + arg);
+        }
+        for (Path p : files) {
+            final File input = p.toFile();
+            final String name = input.getName();
+            final int dot = name.lastIndexOf('.');
+            final String outputName = (dot > 0 ? name.substring(0, dot) : name) + "." + format.getExtension();
+            final File output;
+            if (outputDir == null) {
+                output = new File(input.getParentFile(), outputName);
+            } else {
+                final Path relative = base.toAbsolutePath().relativize(p.toAbsolutePath());
+                output = new File(new File(outputDir, relative.toString()).getParentFile(), outputName);
+            }
+            if (!overwrite && output.exists()) {
+                continue;
+            }
+            jobs.add(new Job(input, output));
+        }
+    }
+
+    private static int indexOfGlob(String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            final char c = arg.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isAudioFile(Path p) {
+        final String name = p.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static List<Path> walk(Path base, Predicate<Path> filter) throws IOException {
+        try (Stream<Path> s = Files.walk(base)) {
+            return s.filter(Files::isRegularFile).filter(filter).sorted().collect(Collectors.toList());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Preferences prefs = Preferences.userRoot().node("mister-whisper");
+        File model = new File("models", prefs.get("model", "ggml-large-v3-turbo-q8_0.bin"));
+        int states = prefs.getInt("parallel-transcriptions", LocalWhisperCPP.getDefaultParallelTranscriptions());
+        int decoders = 2;
+        OutputFormat format = OutputFormat.TEXT;
+        File outputDir = null;
+        boolean overwrite = false;
+        File journalFile = null;
+        File cacheDir = new File(prefs.get("cache.dir", "cache"));
+        long cacheSize = prefs.getLong("cache.max-size-mb", 1024);
+        final List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("--model")) {
+                model = new File(args[++i]);
+            } else if (arg.equals("--states")) {
+                states = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--decoders")) {
+                decoders = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--format")) {
+                format = OutputFormat.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--output")) {
+                outputDir = new File(args[++i]);
+            } else if (arg.equals("--overwrite")) {
+                overwrite = true;
+            } else if (arg.equals("--cache")) {
+                cacheDir = new File(args[++i]);
+            } else if (arg.equals("--cache-size")) {
+                cacheSize = Long.parseLong(args[++i]);
+            } else if (arg.equals("--no-cache")) {
+                cacheDir = null;
+            } else if (arg.equals("--journal")) {
+                journalFile = new File(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                inputs.add(arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.out.println("Usage: BatchTranscriber [--model file.bin] [--states n] [--decoders n] [--format text|json] [--output dir] [--overwrite] [--cache dir] [--cache-size mb] [--no-cache] [--journal file] directory|file|glob...");
+            System.exit(1);
+        }
+        final List<Job> jobs = new ArrayList<>();
+        for (String input : inputs) {
+            addJobs(input, outputDir, format, overwrite, jobs);
+        }
+        final String run = getRunKey(inputs, outputDir, format, overwrite, model);
+        if (journalFile == null) {
+            journalFile = new File("batch-" + run + ".journal");
+        }
+        final CheckpointJournal journal = new CheckpointJournal(journalFile, run);
+        final int count = jobs.size();
+        jobs.removeIf(job -> isDone(job, journal));
+        if (jobs.size() < count) {
+            System.out.println((count - jobs.size()) + " files already done by the interrupted batch");
+        }
+        System.out.println(jobs.size() + " files to transcribe");
+        if (jobs.isEmpty()) {
+            journal.delete();
+            return;
+        }
+        if (!model.exists()) {
+            System.out.println("Model " + model.getAbsolutePath() + " not found");
+            System.exit(1);
+        }
+        final LocalWhisperCPP whisper = new LocalWhisperCPP(model, states);
+        System.out.println("Batch transcription using " + model.getName() + ", " + states + " parallel transcriptions");
+        whisper.warmUpNow();
+        final BatchTranscriber batch = new BatchTranscriber(whisper, format, decoders);
+        batch.setJournal(journal);
+        TranscriptCache cache = null;
+        if (cacheDir != null) {
+            cache = new TranscriptCache(cacheDir, cacheSize * 1024 * 1024);
+            batch.setCache(cache, model);
+        }
+        final int failed = batch.run(jobs);
+        if (cache != null) {
+            cache.close();
+        }
+        // Finished : the failed files have no record, the next run transcribes them again
+        journal.delete();
+        whisper.release();
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
@@ -0,0 +1,260 @@
+package whisper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journal of the progress of a batch or of a long form transcription, so a run interrupted by a
+ * crash can be resumed : the completed files and, for the long recordings, the last checkpoint (end
+ * of the written segments, count and size of the output).
+ *
+ * The records are appended as lines, written to the file as soon as they are added (a crash of the
+ * process loses nothing), but synced to the disk at most once a second or every 256 records, so the
+ * journal does not slow down a batch of short files. A timer syncs the records left unsynced for a
+ * second, even if no record follows them. A crash of the system loses the last records : the work is
+ * done again. The records are written after the outputs, which are checked on restart.
+ *
+ * A journal can be keyed to a run (a hash of its settings) : the journal of another run is
+ * replaced instead of skipping its files.
+ *
+ * Records : R run start (run of the journal, first record), D path (file done), C centiseconds
+ * count bytes path (checkpoint).
+ */
+public final class CheckpointJournal implements Closeable {
+    private static final long SYNC_INTERVAL = 1000;
+    private static final int SYNC_RECORDS = 256;
+
+    /**
+     * End of the written segments of a long recording
+     */
+    public static final class Checkpoint {
+        private final long offset;
+        private final int count;
+        private final long bytes;
+
+        Checkpoint(long offset, int count, long bytes) {
+            this.offset = offset;
+            this.count = count;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the end of the written segments in centiseconds
+         */
+        public long getOffset() {
+            return this.offset;
+        }
+
+        /**
+         * @return the number of segments written
+         */
+        public int getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return the size of the output
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final Set<String> done = new HashSet<>();
+    private final Map<String, Checkpoint> checkpoints = new HashMap<>();
+    private final ScheduledExecutorService syncService;
+    private long lastSync;
+    private int pending;
+    private String run;
+    private long runStart;
+
+    /**
+     * Open a journal, reading the records of a previous run if the file exists
+     */
+    public CheckpointJournal(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Open the journal of a run, reading its records if the file exists and is a journal of the
+     * same run. The journal of another run is replaced.
+     *
+     * @param run identifier of the run, null to read any journal
+     */
+    public CheckpointJournal(File file, String run) throws IOException {
+        this.file = file;
+        long valid = 0;
+        if (file.exists()) {
+            valid = read(Files.readAllBytes(file.toPath()));
+            if (run != null && !run.equals(this.run)) {
+                System.out.println("Journal " + file + " is the journal of another run, replaced");
+                this.done.clear();
+                this.checkpoints.clear();
+                this.run = null;
+                valid = 0;
+            } else {
+                System.out.println("Journal " + file + " : " + this.done.size() + " files done, " + this.checkpoints.size() + " checkpoints");
+            }
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Remove the last line if it was cut by a crash
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        this.lastSync = System.currentTimeMillis();
+        if (run != null && this.run == null) {
+            this.run = run;
+            this.runStart = System.currentTimeMillis();
+            append("R " + run + " " + this.runStart);
+        }
+        this.syncService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        this.syncService.scheduleWithFixedDelay(this::syncIfDue, SYNC_INTERVAL / 4, SYNC_INTERVAL / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the length of the complete lines
+     */
+    private long read(byte[] content) throws IOException {
+        int end = content.length;
+        while (end > 0 && content[end - 1] != '\n') {
+            end--;
+        }
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content, 0, end), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("R ")) {
+                    final String[] parts = line.split(" ", 3);
+                    if (parts.length == 3) {
+                        this.run = parts[1];
+                        this.runStart = Long.parseLong(parts[2]);
+                    }
+                } else if (line.startsWith("D ")) {
+                    final String path = line.substring(2);
+                    this.done.add(path);
+                    this.checkpoints.remove(path);
+                } else if (line.startsWith("C ")) {
+                    final String[] parts = line.split(" ", 5);
+                    if (parts.length == 5) {
+                        this.checkpoints.put(parts[4], new Checkpoint(Long.parseLong(parts[1]), Integer.parseInt(parts[2]), Long.parseLong(parts[3])));
+                    }
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the time the run of the journal started, 0 if unknown
+     */
+    public synchronized long getRunStart() {
+        return this.runStart;
+    }
+
+    /**
+     * @param path the output of the file
+     */
+    public synchronized boolean isDone(String path) {
+        return this.done.contains(path);
+    }
+
+    /**
+     * @return the last checkpoint of an output, null if none
+     */
+    public synchronized Checkpoint getCheckpoint(String path) {
+        return this.checkpoints.get(path);
+    }
+
+    /**
+     * Record a completed file, once its output is written
+     */
+    public synchronized void fileDone(String path) throws IOException {
+        this.done.add(path);
+        this.checkpoints.remove(path);
+        append("D " + path);
+    }
+
+    /**
+     * Record the progress of a long recording, once the segments are written
+     *
+     * @param offset the end of the written segments in centiseconds
+     * @param bytes the size of the output
+     */
+    public synchronized void checkpoint(String path, long offset, int count, long bytes) throws IOException {
+        this.checkpoints.put(path, new Checkpoint(offset, count, bytes));
+        append("C " + offset + " " + count + " " + bytes + " " + path);
+    }
+
+    private void append(String record) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.pending++;
+        if (this.pending >= SYNC_RECORDS || System.currentTimeMillis() - this.lastSync >= SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    /**
+     * Sync the records appended more than SYNC_INTERVAL ago, called by the timer
+     */
+    private synchronized void syncIfDue() {
+        if (this.pending > 0 && this.channel.isOpen() && System.currentTimeMillis() - this.lastSync >= SYNC_INTERVAL) {
+            try {
+                sync();
+            } catch (IOException e) {
+                System.out.println("Cannot sync journal " + this.file + " : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sync the records to the disk
+     */
+    public synchronized void sync() throws IOException {
+        if (this.pending > 0) {
+            this.channel.force(false);
+            this.pending = 0;
+        }
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.syncService.shutdown();
+        if (this.channel.isOpen()) {
+            sync();
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Close and remove the journal, when the run is complete
+     */
+    public synchronized void delete() throws IOException {
+        this.syncService.shutdown();
+        this.channel.close();
+        Files.deleteIfExists(this.file.toPath());
+    }
+}
@@ -0,0 +1,147 @@
+package whisper;
+
+import io.github.ggerganov.whispercpp.callbacks.WhisperEncoderBeginCallback;
+import io.github.ggerganov.whispercpp.callbacks.WhisperProgressCallback;
+import io.github.ggerganov.whispercpp.params.CBool;
+import io.github.ggerganov.whispercpp.params.WhisperFullParams;
+import io.github.ggerganov.whispercpp.params.WhisperSamplingStrategy;
+
+/**
+ * Immutable set of decoding options.
+ *
+ * Each whisper state builds the native params of a profile once (see WhisperStatePool.State) and
+ * reuses them for all the transcriptions with that profile: only the per call fields (thread count,
+ * prompt) are written again.
+ */
+public final class DecodingProfile {
+    /** Full recordings: beam search */
+    public static final DecodingProfile DICTATION = new DecodingProfile(WhisperSamplingStrategy.WHISPER_SAMPLING_BEAM_SEARCH, "auto", true, true);
+    /** Live transcription of a growing window: greedy, no progress */
+    public static final DecodingProfile STREAMING = new DecodingProfile(WhisperSamplingStrategy.WHISPER_SAMPLING_GREEDY, "auto", true, false);
+
+    // Kept here so the native function pointers stay valid
+    private static final WhisperProgressCallback PROGRESS_CALLBACK = (ctx, state, progress, user_data) -> System.out.println("progress: " + progress);
+    private static final WhisperEncoderBeginCallback ENCODER_BEGIN_CALLBACK = (ctx, state, user_data) -> {
+        LatencyTracker.encoderStarted(state);
+        return true;
+    };
+
+    private final WhisperSamplingStrategy strategy;
+    private final String language;
+    private final boolean noContext;
+    private final boolean reportProgress;
+    private final float temperature;
+    private final float temperatureInc;
+
+    /**
+     * @param language language code, "auto" for detection
+     * @param noContext true to ignore the text previously decoded by the state
+     * @param reportProgress true to print the progress of the transcriptions
+     */
+    public DecodingProfile(WhisperSamplingStrategy strategy, String language, boolean noContext, boolean reportProgress) {
+        // Defaults of whisper.cpp
+        this(strategy, language, noContext, reportProgress, 0.0f, 0.2f);
+    }
+
+    /**
+     * @param temperature initial sampling temperature
+     * @param temperatureInc increment of the temperature when the decoding fails, 0 for no
+     *            fallback
+     */
+    public DecodingProfile(WhisperSamplingStrategy strategy, String language, boolean noContext, boolean reportProgress, float temperature, float temperatureInc) {
+        if (strategy == null || language == null) {
+            throw new IllegalArgumentException("null strategy or language");
+        }
+        this.strategy = strategy;
+        this.language = language;
+        this.noContext = noContext;
+        this.reportProgress = reportProgress;
+        this.temperature = temperature;
+        this.temperatureInc = temperatureInc;
+    }
+
+    /**
+     * @return this profile with the given temperatures
+     */
+    public DecodingProfile withTemperature(float temperature, float temperatureInc) {
+        if (temperature == this.temperature && temperatureInc == this.temperatureInc) {
+            return this;
+        }
+        return new DecodingProfile(this.strategy, this.language, this.noContext, this.reportProgress, temperature, temperatureInc);
+    }
+
+    public WhisperSamplingStrategy getStrategy() {
+        return this.strategy;
+    }
+
+    public String getLanguage() {
+        return this.language;
+    }
+
+    public boolean isNoContext() {
+        return this.noContext;
+    }
+
+    public boolean isReportProgress() {
+        return this.reportProgress;
+    }
+
+    public float getTemperature() {
+        return this.temperature;
+    }
+
+    public float getTemperatureInc() {
+        return this.temperatureInc;
+    }
+
+    /**
+     * @return the fields changing the transcriptions, for the keys of the transcript cache
+     */
+    public String getKey() {
+        return this.strategy + " " + this.language + " " + this.noContext + " " + this.temperature + " " + this.temperatureInc;
+    }
+
+    /**
+     * Set the fields of this profile in default params of the same strategy (not written to the
+     * native memory).
+     */
+    void apply(WhisperFullParams params) {
+        params.print_progress = CBool.FALSE;
+        params.language = this.language;
+        params.no_context = this.noContext ? CBool.TRUE : CBool.FALSE;
+        params.temperature = this.temperature;
+        params.temperature_inc = this.temperatureInc;
+        if (this.reportProgress) {
+            params.setProgressCallback(PROGRESS_CALLBACK);
+        }
+        params.setEncoderBeginCallbackeginCallbackCallback(ENCODER_BEGIN_CALLBACK);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DecodingProfile)) {
+            return false;
+        }
+        final DecodingProfile o = (DecodingProfile) obj;
+        return this.strategy == o.strategy && this.language.equals(o.language) && this.noContext == o.noContext && this.reportProgress == o.reportProgress
+                && this.temperature == o.temperature && this.temperatureInc == o.temperatureInc;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = this.strategy.hashCode();
+        h = 31 * h + this.language.hashCode();
+        h = 31 * h + (this.noContext ? 1 : 0);
+        h = 31 * h + (this.reportProgress ? 1 : 0);
+        h = 31 * h + Float.floatToIntBits(this.temperature);
+        return 31 * h + Float.floatToIntBits(this.temperatureInc);
+    }
+
+    @Override
+    public String toString() {
+        return this.strategy + " " + this.language + (this.noContext ? " no context" : "") + " temperature " + this.temperature + "+" + this.temperatureInc;
+    }
+}
@@ -0,0 +1,89 @@
+package whisper;
+
+/**
+ * Voice activity detection based on the frame energy and zero crossing rate, compared to an
+ * adaptive estimation of the noise floor.
+ *
+ * A frame is speech if its energy is well above the noise floor, or a bit above the noise floor
+ * with a zero crossing rate typical of unvoiced consonants (s, f, ch...). The noise floor is the
+ * minimum energy over the last 2 seconds (minimum statistics): it follows a noisy room within
+ * seconds, while the short pauses of the speech keep it low when someone is talking.
+ */
+public class EnergyVoiceActivityDetector implements VoiceActivityDetector {
+    // 20ms at 16kHz
+    private static final int FRAME_SAMPLES = 320;
+    // Noise floor window : 10 blocks of 200ms
+    private static final int FRAMES_PER_BLOCK = 10;
+    private static final int BLOCKS = 10;
+    // Energy is the mean of the squared samples, 60 = RMS of a very quiet speaker
+    private static final double MIN_SPEECH_ENERGY = 60 * 60;
+    private static final double MIN_NOISE_ENERGY = 10 * 10;
+    // ~6dB above the noise floor
+    private static final double SPEECH_RATIO = 4.0;
+    // ~3dB above the noise floor for unvoiced consonants
+    private static final double UNVOICED_RATIO = 2.0;
+    private static final double UNVOICED_MIN_ZCR = 0.15;
+    private static final double UNVOICED_MAX_ZCR = 0.5;
+
+    private final PcmConverter.Stats stats = new PcmConverter.Stats();
+    private final double[] blockMinima = new double[BLOCKS];
+    private int blockCount;
+    private int blockIndex;
+    private double currentBlockMinimum;
+    private int currentBlockFrames;
+
+    public EnergyVoiceActivityDetector() {
+        reset();
+    }
+
+    @Override
+    public int getFrameLength() {
+        return FRAME_SAMPLES * 2;
+    }
+
+    @Override
+    public boolean isSpeech(byte[] pcm, int offset) {
+        this.stats.reset();
+        PcmConverter.getInstance().analyze(pcm, offset, FRAME_SAMPLES, this.stats);
+        final double energy = this.stats.getMeanSquare();
+        final double zcr = this.stats.getZeroCrossingRate();
+
+        final double noiseFloor = getNoiseFloor();
+        final boolean speech = energy > Math.max(MIN_SPEECH_ENERGY, noiseFloor * SPEECH_RATIO)
+                || (energy > Math.max(MIN_SPEECH_ENERGY, noiseFloor * UNVOICED_RATIO) && zcr >= UNVOICED_MIN_ZCR && zcr <= UNVOICED_MAX_ZCR);
+
+        this.currentBlockMinimum = Math.min(this.currentBlockMinimum, energy);
+        this.currentBlockFrames++;
+        if (this.currentBlockFrames == FRAMES_PER_BLOCK) {
+            this.blockMinima[this.blockIndex] = this.currentBlockMinimum;
+            this.blockIndex = (this.blockIndex + 1) % BLOCKS;
+            this.blockCount = Math.min(BLOCKS, this.blockCount + 1);
+            this.currentBlockMinimum = Double.MAX_VALUE;
+            this.currentBlockFrames = 0;
+        }
+        return speech;
+    }
+
+    /**
+     * @return the estimated noise energy
+     */
+    public double getNoiseFloor() {
+        double min = this.currentBlockMinimum;
+        for (int i = 0; i < this.blockCount; i++) {
+            min = Math.min(min, this.blockMinima[i]);
+        }
+        if (min == Double.MAX_VALUE) {
+            // Nothing analysed yet
+            return MIN_NOISE_ENERGY;
+        }
+        return Math.max(MIN_NOISE_ENERGY, min);
+    }
+
+    @Override
+    public void reset() {
+        this.blockCount = 0;
+        this.blockIndex = 0;
+        this.currentBlockMinimum = Double.MAX_VALUE;
+        this.currentBlockFrames = 0;
+    }
+}
@@ -0,0 +1,447 @@
+package whisper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming FLAC encoder for 16kHz 16 bits mono audio.
+ *
+ * Each block of 4096 samples is encoded with the best fixed predictor (order 0 to 4) and a Rice
+ * coded residual, partitioned to follow the changes of the signal. Silent blocks are encoded as
+ * constant subframes. There is no LPC : speech compresses to about half the size of the WAV, at a
+ * fraction of the cost of an upload.
+ */
+public class FlacEncoder {
+    public static final int BLOCK_SIZE = 4096;
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c8 = i;
+            int c16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+                c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+            }
+            CRC8[i] = c8 & 0xFF;
+            CRC16[i] = c16 & 0xFFFF;
+        }
+    }
+
+    private final OutputStream out;
+    private final long totalSamples;
+    private final int[] block = new int[BLOCK_SIZE];
+    private int blockLength;
+    // First byte of a sample split between two writes, -1 if none
+    private int pendingByte = -1;
+    private long frameNumber;
+    private boolean headerWritten;
+    // Encoding buffers, reused for each frame
+    private final int[] residual = new int[BLOCK_SIZE];
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] parameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final BitWriter frame = new BitWriter(BLOCK_SIZE * 2 + 64);
+
+    /**
+     * @param totalSamples number of samples that will be written, 0 if unknown
+     */
+    public FlacEncoder(OutputStream out, long totalSamples) {
+        this.out = out;
+        this.totalSamples = totalSamples;
+    }
+
+    /**
+     * Encoder of the frames only, written before the number of samples is known. The stream must
+     * start with getHeader().
+     */
+    FlacEncoder(OutputStream out) {
+        this(out, 0);
+        this.headerWritten = true;
+    }
+
+    /**
+     * Encode 16 bits little endian PCM samples.
+     *
+     * @param length number of bytes, a sample can be split between two calls
+     */
+    public void write(byte[] pcm, int offset, int length) throws IOException {
+        writeHeader();
+        int i = offset;
+        final int end = offset + length;
+        if (this.pendingByte >= 0 && i < end) {
+            addSample((short) (((pcm[i++] & 0xFF) << 8) | this.pendingByte));
+            this.pendingByte = -1;
+        }
+        for (; i + 1 < end; i += 2) {
+            addSample((short) (((pcm[i + 1] & 0xFF) << 8) | (pcm[i] & 0xFF)));
+        }
+        if (i < end) {
+            this.pendingByte = pcm[i] & 0xFF;
+        }
+    }
+
+    private void addSample(int sample) throws IOException {
+        this.block[this.blockLength++] = sample;
+        if (this.blockLength == BLOCK_SIZE) {
+            writeFrame();
+        }
+    }
+
+    /**
+     * Encode the last samples. The output stream is not closed.
+     */
+    public void finish() throws IOException {
+        writeHeader();
+        if (this.blockLength > 0) {
+            writeFrame();
+        }
+        this.out.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        if (this.headerWritten) {
+            return;
+        }
+        this.headerWritten = true;
+        this.out.write(getHeader(this.totalSamples));
+    }
+
+    /**
+     * @param totalSamples number of samples of the stream, 0 if unknown
+     * @return the signature and the STREAMINFO block
+     */
+    static byte[] getHeader(long totalSamples) throws IOException {
+        final BitWriter b = new BitWriter(42);
+        b.writeBits('f', 8);
+        b.writeBits('L', 8);
+        b.writeBits('a', 8);
+        b.writeBits('C', 8);
+        // STREAMINFO, the only (last) metadata block, 34 bytes
+        b.writeBits(0x80, 8);
+        b.writeBits(34, 24);
+        b.writeBits(BLOCK_SIZE, 16);
+        b.writeBits(BLOCK_SIZE, 16);
+        // Unknown min and max frame sizes
+        b.writeBits(0, 24);
+        b.writeBits(0, 24);
+        b.writeBits(SAMPLE_RATE, 20);
+        // Mono
+        b.writeBits(0, 3);
+        b.writeBits(BITS_PER_SAMPLE - 1, 5);
+        b.writeBits((int) (totalSamples >>> 32), 4);
+        b.writeBits((int) totalSamples, 32);
+        // Unknown MD5 : not available before the end of a stream
+        for (int i = 0; i < 4; i++) {
+            b.writeBits(0, 32);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(42);
+        b.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private void writeFrame() throws IOException {
+        final int n = this.blockLength;
+        final BitWriter b = this.frame;
+        b.reset();
+        // Frame header : sync code, fixed block size
+        b.writeBits(0xFFF8, 16);
+        b.writeBits(n == BLOCK_SIZE ? 0b1100 : 0b0111, 4);
+        // 16kHz, mono, 16 bits
+        b.writeBits(0b0101, 4);
+        b.writeBits(0b0000, 4);
+        b.writeBits(0b100, 3);
+        b.writeBits(0, 1);
+        writeUTF8(b, this.frameNumber);
+        if (n != BLOCK_SIZE) {
+            b.writeBits(n - 1, 16);
+        }
+        b.writeBits(crc8(b.getBuffer(), b.getLength()), 8);
+
+        writeSubframe(b, n);
+
+        // Frame footer
+        b.align();
+        b.writeBits(crc16(b.getBuffer(), b.getLength()), 16);
+        b.writeTo(this.out);
+        this.frameNumber++;
+        this.blockLength = 0;
+    }
+
+    private void writeSubframe(BitWriter b, int n) {
+        final int[] samples = this.block;
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            b.writeBits(0b00000000, 8);
+            b.writeBits(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        // Order with the smallest sum of absolute residuals
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        int order = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int o = 0; o <= maxOrder; o++) {
+            final long sum = computeResidual(samples, n, o, null);
+            if (sum < bestSum) {
+                bestSum = sum;
+                order = o;
+            }
+        }
+        computeResidual(samples, n, order, this.residual);
+
+        // Partition order with the smallest estimated size
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER && (n & ((2 << maxPartitionOrder) - 1)) == 0 && (n >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+        final int partitions = 1 << maxPartitionOrder;
+        final int partitionSize = n >> maxPartitionOrder;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            for (int i = Math.max(order, p * partitionSize); i < (p + 1) * partitionSize; i++) {
+                sum += fold(this.residual[i]);
+            }
+            this.partitionSums[p] = sum;
+        }
+        long bestBits = Long.MAX_VALUE;
+        int partitionOrder = 0;
+        final long[] sums = this.partitionSums;
+        final int[] parameters = this.parameters;
+        for (int po = maxPartitionOrder; po >= 0; po--) {
+            if (po < maxPartitionOrder) {
+                // Merge the partitions two by two
+                for (int p = 0; p < (1 << po); p++) {
+                    sums[p] = sums[2 * p] + sums[2 * p + 1];
+                }
+            }
+            long bits = 0;
+            for (int p = 0; p < (1 << po); p++) {
+                final int count = (n >> po) - (p == 0 ? order : 0);
+                final int k = getRiceParameter(sums[p], count);
+                parameters[p] = k;
+                bits += 4 + (long) count * (k + 1) + (sums[p] >>> k);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                partitionOrder = po;
+                System.arraycopy(parameters, 0, this.riceParameters, 0, 1 << po);
+            }
+        }
+
+        if (order * BITS_PER_SAMPLE + 6 + bestBits >= (long) n * BITS_PER_SAMPLE) {
+            // Verbatim, nothing to gain
+            b.writeBits(0b00000010, 8);
+            for (int i = 0; i < n; i++) {
+                b.writeBits(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        // Fixed predictor subframe
+        b.writeBits(0b00010000 | (order << 1), 8);
+        for (int i = 0; i < order; i++) {
+            b.writeBits(samples[i], BITS_PER_SAMPLE);
+        }
+        // Rice coding with 4 bits parameters
+        b.writeBits(0b00, 2);
+        b.writeBits(partitionOrder, 4);
+        final int size = n >> partitionOrder;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            final int k = this.riceParameters[p];
+            b.writeBits(k, 4);
+            for (int i = Math.max(order, p * size); i < (p + 1) * size; i++) {
+                b.writeRice(fold(this.residual[i]), k);
+            }
+        }
+    }
+
+    /**
+     * Compute the residual of a fixed predictor.
+     *
+     * @param residual filled with the residual from index order (can be null)
+     * @return the sum of the absolute values of the residual
+     */
+    private static long computeResidual(int[] s, int n, int order, int[] residual) {
+        long sum = 0;
+        for (int i = order; i < n; i++) {
+            final int r;
+            switch (order) {
+            case 0:
+                r = s[i];
+                break;
+            case 1:
+                r = s[i] - s[i - 1];
+                break;
+            case 2:
+                r = s[i] - 2 * s[i - 1] + s[i - 2];
+                break;
+            case 3:
+                r = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                break;
+            default:
+                r = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                break;
+            }
+            if (residual != null) {
+                residual[i] = r;
+            }
+            sum += Math.abs(r);
+        }
+        return sum;
+    }
+
+    private static int fold(int r) {
+        return (r << 1) ^ (r >> 31);
+    }
+
+    /**
+     * @return the Rice parameter giving the smallest estimated size
+     */
+    private static int getRiceParameter(long sum, int count) {
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+            final long bits = (long) count * (k + 1) + (sum >>> k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private static void writeUTF8(BitWriter b, long v) {
+        if (v < 0x80) {
+            b.writeBits((int) v, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && v >= (1L << (5 * bytes + 1))) {
+            bytes++;
+        }
+        // Leading byte : as many ones as bytes, then the highest bits
+        final int shift = 6 * (bytes - 1);
+        b.writeBits((0xFF00 >> bytes) & 0xFF | (int) (v >>> shift), 8);
+        for (int i = bytes - 2; i >= 0; i--) {
+            b.writeBits(0x80 | (int) ((v >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Encode audio in memory.
+     *
+     * @param dataLength length in bytes of the audio, padded with silence
+     */
+    public static byte[] encode(SegmentedAudioStore audio, long dataLength) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) (dataLength / 2) + 1024);
+        final FlacEncoder encoder = new FlacEncoder(out, dataLength / 2);
+        final byte[] buffer = new byte[16 * 1024];
+        long position = 0;
+        while (position < dataLength) {
+            int n = audio.read(position, buffer, 0, (int) Math.min(buffer.length, dataLength - position));
+            if (n < 0) {
+                // Padding
+                n = (int) Math.min(buffer.length, dataLength - position);
+                Arrays.fill(buffer, 0, n, (byte) 0);
+            }
+            encoder.write(buffer, 0, n);
+            position += n;
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    /**
+     * Bits written most significant first in a growing buffer
+     */
+    static final class BitWriter {
+        private byte[] buffer;
+        private int length;
+        private long bits;
+        private int bitCount;
+
+        BitWriter(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void reset() {
+            this.length = 0;
+            this.bitCount = 0;
+        }
+
+        /**
+         * Write the lowest n bits of value (n from 0 to 32)
+         */
+        void writeBits(int value, int n) {
+            this.bits = (this.bits << n) | (value & ((1L << n) - 1));
+            this.bitCount += n;
+            while (this.bitCount >= 8) {
+                this.bitCount -= 8;
+                if (this.length == this.buffer.length) {
+                    this.buffer = Arrays.copyOf(this.buffer, this.length * 2);
+                }
+                this.buffer[this.length++] = (byte) (this.bits >>> this.bitCount);
+            }
+        }
+
+        void writeRice(int u, int k) {
+            int q = u >>> k;
+            while (q >= 32) {
+                writeBits(0, 32);
+                q -= 32;
+            }
+            // Unary quotient, then the remainder
+            writeBits(1, q + 1);
+            writeBits(u, k);
+        }
+
+        void align() {
+            if (this.bitCount > 0) {
+                writeBits(0, 8 - this.bitCount);
+            }
+        }
+
+        byte[] getBuffer() {
+            return this.buffer;
+        }
+
+        /**
+         * @return the number of complete bytes
+         */
+        int getLength() {
+            return this.length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(this.buffer, 0, this.length);
+        }
+    }
+}
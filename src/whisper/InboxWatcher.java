@@ -0,0 +1,331 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.prefs.Preferences;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Transcription of the audio files dropped in watched folders (inboxes), for example by phones or
+ * meeting bots.
+ *
+ * The folders (and their sub folders) are watched with a WatchService. A new or modified audio file
+ * is transcribed once its size and date have not changed for a few seconds, so files still being
+ * written or copied are not read. The transcription is written next to the file, or in the output
+ * directory (same relative path), through a temporary file. Files having a transcription newer than
+ * them are skipped, so the files dropped while the watcher was stopped are transcribed at startup, and
+ * a recording replaced by another one with the same name is transcribed again.
+ *
+ * The files are transcribed by a bounded pool of workers, as background transcriptions : they wait
+ * for the dictation and give way to it every 10s of audio (see WhisperStatePool).
+ *
+ * Usage: java -cp ... whisper.InboxWatcher [--model file.bin] [--workers n] [--format
+ * txt|srt|vtt|jsonl] [--output dir] [--settle seconds] directory...
+ */
+public class InboxWatcher {
+    // Check of the pending files
+    private static final long SCAN_INTERVAL = 1000;
+
+    /**
+     * A file seen in an inbox, transcribed once it stops changing
+     */
+    private static final class Pending {
+        long size = -1;
+        long lastModified = -1;
+        // Last time a change was seen
+        long changed;
+    }
+
+    private final Supplier<LocalWhisperCPP> models;
+    private final List<Path> roots = new ArrayList<>();
+    private final File outputDir;
+    private final SegmentWriter.Format format;
+    private final long settleTime;
+    private final ThreadPoolExecutor workers;
+    private final WatchService watcher;
+    // Watched directories
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    // Files waiting to be stable, used by the watcher thread only
+    private final Map<Path, Pending> pending = new HashMap<>();
+    // Date of the files which failed, transcribed again only if modified
+    private final Map<Path, Long> failed = new ConcurrentHashMap<>();
+    // Files queued or being transcribed
+    private final Set<Path> running = ConcurrentHashMap.newKeySet();
+    private Thread thread;
+
+    /**
+     * @param models gives the current model, with a reference released after each file
+     * @param outputDir where the transcriptions are written (same relative paths as in the watched
+     *            directories), null to write them next to the audio files
+     * @param workers number of files transcribed at the same time
+     * @param settleTime time in ms without change of a file before its transcription
+     */
+    public InboxWatcher(Supplier<LocalWhisperCPP> models, List<File> dirs, File outputDir, SegmentWriter.Format format, int workers, long settleTime) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("invalid worker count " + workers);
+        }
+        this.models = models;
+        for (File dir : dirs) {
+            if (!dir.isDirectory()) {
+                throw new IOException(dir + " is not a directory");
+            }
+            this.roots.add(dir.toPath().toAbsolutePath().normalize());
+        }
+        this.outputDir = outputDir;
+        this.format = format;
+        this.settleTime = settleTime;
+        final AtomicInteger count = new AtomicInteger();
+        // When the queue is full, the files stay pending
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(workers * 2), r -> {
+            final Thread t = new Thread(r, "inbox-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Start watching, the existing files without transcription are transcribed
+     */
+    public synchronized void start() throws IOException {
+        for (Path root : this.roots) {
+            register(root);
+        }
+        this.thread = new Thread(this::watch, "inbox-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        System.out.println("Watching " + this.roots + " for audio files");
+    }
+
+    /**
+     * Watch a directory and its sub directories, and add their audio files
+     */
+    private void register(Path dir) throws IOException {
+        final List<Path> dirs;
+        try (Stream<Path> s = Files.walk(dir)) {
+            dirs = s.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        for (Path d : dirs) {
+            this.keys.put(d.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+            try (Stream<Path> s = Files.list(d)) {
+                s.filter(p -> Files.isRegularFile(p) && BatchTranscriber.isAudioFile(p)).forEach(this::changed);
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = this.watcher.poll(SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    processEvents(key);
+                }
+                settle();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        final Path dir = this.keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            try {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events lost, look at all the files
+                    for (Path root : this.roots) {
+                        register(root);
+                    }
+                    continue;
+                }
+                final Path p = dir.resolve((Path) event.context());
+                if (Files.isDirectory(p)) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        register(p);
+                    }
+                } else if (BatchTranscriber.isAudioFile(p)) {
+                    changed(p);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                // For example a directory removed while walking it
+                System.out.println("Cannot watch " + dir + " : " + e.getMessage());
+            }
+        }
+        if (!key.reset()) {
+            // Directory removed
+            this.keys.remove(key);
+        }
+    }
+
+    private void changed(Path p) {
+        if (!this.pending.containsKey(p)) {
+            this.pending.put(p, new Pending());
+        }
+    }
+
+    /**
+     * Queue the pending files which have not changed during the settle time
+     */
+    private void settle() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Path, Pending>> it = this.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Path, Pending> e = it.next();
+            final Path p = e.getKey();
+            final Pending f = e.getValue();
+            final File file = p.toFile();
+            final long size = file.length();
+            final long lastModified = file.lastModified();
+            if (lastModified == 0) {
+                // Removed or renamed
+                it.remove();
+                continue;
+            }
+            if (size != f.size || lastModified != f.lastModified) {
+                f.size = size;
+                f.lastModified = lastModified;
+                f.changed = now;
+                continue;
+            }
+            if (now - f.changed < this.settleTime) {
+                continue;
+            }
+            final Long failedDate = this.failed.get(p);
+            // A transcription older than the file is of a previous recording with the same name
+            if (getOutput(p).lastModified() >= lastModified || (failedDate != null && failedDate == lastModified) || this.running.contains(p)) {
+                it.remove();
+                continue;
+            }
+            this.running.add(p);
+            try {
+                this.workers.execute(() -> transcribe(p));
+                it.remove();
+            } catch (RejectedExecutionException ex) {
+                // Queue full, queued at the next scan
+                this.running.remove(p);
+            }
+        }
+    }
+
+    private File getOutput(Path p) {
+        final String name = p.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        final String outputName = (dot > 0 ? name.substring(0, dot) : name) + "." + this.format.getExtension();
+        if (this.outputDir == null) {
+            return p.resolveSibling(outputName).toFile();
+        }
+        for (Path root : this.roots) {
+            if (p.startsWith(root)) {
+                return new File(new File(this.outputDir, root.relativize(p).toString()).getParentFile(), outputName);
+            }
+        }
+        return new File(this.outputDir, outputName);
+    }
+
+    private void transcribe(Path p) {
+        final File file = p.toFile();
+        final long lastModified = file.lastModified();
+        final File output = getOutput(p);
+        final File tmp = new File(output.getParentFile(), output.getName() + ".tmp");
+        final long t = System.currentTimeMillis();
+        final LocalWhisperCPP whisper = this.models.get();
+        try {
+            Files.createDirectories(output.getAbsoluteFile().getParentFile().toPath());
+            final double duration;
+            try (SegmentWriter writer = SegmentWriter.open(tmp, this.format)) {
+                final LongFormTranscriber transcriber = new LongFormTranscriber(whisper, BatchTranscriber.BATCH);
+                transcriber.setBackground(true);
+                duration = transcriber.transcribe(file, writer);
+            }
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.failed.remove(p);
+            System.out.println(String.format(Locale.ROOT, "%s : %.1fs of audio transcribed in %d ms to %s", p, duration, System.currentTimeMillis() - t, output));
+        } catch (Exception e) {
+            this.failed.put(p, lastModified);
+            tmp.delete();
+            System.out.println(p + " failed : " + e.getMessage());
+        } finally {
+            whisper.release();
+            this.running.remove(p);
+        }
+    }
+
+    /**
+     * Stop watching, the running transcriptions are abandoned after their current window (so their
+     * model is released) and done again at the next start
+     */
+    public synchronized void stop() throws IOException {
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+        this.watcher.close();
+        this.workers.shutdownNow();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Preferences prefs = Preferences.userRoot().node("mister-whisper");
+        File model = new File("models", prefs.get("model", "ggml-large-v3-turbo-q8_0.bin"));
+        int workers = prefs.getInt("parallel-transcriptions", LocalWhisperCPP.getDefaultParallelTranscriptions());
+        SegmentWriter.Format format = SegmentWriter.Format.valueOf(prefs.get("inbox.format", "txt").toUpperCase(Locale.ROOT));
+        File outputDir = null;
+        long settle = prefs.getInt("inbox.settle-seconds", 5);
+        final List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("--model")) {
+                model = new File(args[++i]);
+            } else if (arg.equals("--workers")) {
+                workers = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--format")) {
+                format = SegmentWriter.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--output")) {
+                outputDir = new File(args[++i]);
+            } else if (arg.equals("--settle")) {
+                settle = Long.parseLong(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                dirs.add(new File(arg));
+            }
+        }
+        if (dirs.isEmpty()) {
+            System.out.println("Usage: InboxWatcher [--model file.bin] [--workers n] [--format txt|srt|vtt|jsonl] [--output dir] [--settle seconds] directory...");
+            System.exit(1);
+        }
+        if (!model.exists()) {
+            System.out.println("Model " + model.getAbsolutePath() + " not found");
+            System.exit(1);
+        }
+        // The last state of the pool is kept for the interactive transcriptions : without dictation,
+        // it is never used, so only the states of the workers are created
+        final LocalWhisperCPP whisper = new LocalWhisperCPP(model, workers + 1);
+        whisper.warmUpNow(workers);
+        new InboxWatcher(whisper::retain, dirs, outputDir, format, workers, settle * 1000).start();
+        // The watcher threads are daemons
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,385 @@
+package whisper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pull parser reading JSON values one by one from a stream, in bounded memory : only the current
+ * name, string or number is kept. Skipped strings are not even stored.
+ */
+class JsonPullParser implements Closeable {
+
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    // Scopes
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    private long offset;
+
+    private int[] stack = new int[32];
+    private int stackSize;
+
+    private Token peeked;
+    // Name, number or literal of the peeked token. The content of a peeked string is read by
+    // nextString() or skipped by skipValue()
+    private final StringBuilder value = new StringBuilder();
+
+    JsonPullParser(InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    JsonPullParser(Reader in) {
+        this.in = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    Token peek() throws IOException {
+        if (this.peeked != null) {
+            return this.peeked;
+        }
+        final int scope = this.stack[this.stackSize - 1];
+        int c;
+        switch (scope) {
+        case EMPTY_ARRAY:
+            this.stack[this.stackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return this.peeked = Token.END_ARRAY;
+            }
+            return this.peeked = readValue(c);
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return this.peeked = Token.END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("',' or ']' expected");
+            }
+            return this.peeked = readValue(nextNonWhitespace());
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            this.stack[this.stackSize - 1] = DANGLING_NAME;
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return this.peeked = Token.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("',' or '}' expected");
+                }
+                c = nextNonWhitespace();
+            }
+            if (c != '"') {
+                throw syntaxError("name expected");
+            }
+            this.value.setLength(0);
+            readString(true);
+            return this.peeked = Token.NAME;
+        case DANGLING_NAME:
+            this.stack[this.stackSize - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("':' expected");
+            }
+            return this.peeked = readValue(nextNonWhitespace());
+        case EMPTY_DOCUMENT:
+            this.stack[this.stackSize - 1] = NONEMPTY_DOCUMENT;
+            return this.peeked = readValue(nextNonWhitespace());
+        default:
+            if (nextNonWhitespace() != -1) {
+                throw syntaxError("end of document expected");
+            }
+            return this.peeked = Token.END_DOCUMENT;
+        }
+    }
+
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+        case '{':
+            return Token.BEGIN_OBJECT;
+        case '[':
+            return Token.BEGIN_ARRAY;
+        case '"':
+            return Token.STRING;
+        case -1:
+            throw syntaxError("unexpected end of document");
+        default:
+            // Number or literal, until a separator
+            this.value.setLength(0);
+            this.value.append((char) c);
+            while (fill()) {
+                final char d = this.buffer[this.pos];
+                if (d == ',' || d == '}' || d == ']' || d == ':' || Character.isWhitespace(d)) {
+                    break;
+                }
+                this.value.append(d);
+                this.pos++;
+            }
+            final String literal = this.value.toString();
+            if (literal.equals("true") || literal.equals("false")) {
+                return Token.BOOLEAN;
+            }
+            if (literal.equals("null")) {
+                return Token.NULL;
+            }
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return Token.NUMBER;
+            }
+            throw syntaxError("unexpected value " + literal);
+        }
+    }
+
+    boolean hasNext() throws IOException {
+        final Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        this.stackSize--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        this.stackSize--;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        return this.value.toString();
+    }
+
+    /**
+     * @return a string, or a number as a string
+     */
+    String nextString() throws IOException {
+        final Token t = peek();
+        if (t == Token.STRING) {
+            this.peeked = null;
+            this.value.setLength(0);
+            readString(true);
+            return this.value.toString();
+        }
+        expect(Token.NUMBER);
+        return this.value.toString();
+    }
+
+    double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        try {
+            return Double.parseDouble(this.value.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("invalid number " + this.value);
+        }
+    }
+
+    long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        final String number = this.value.toString();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(number);
+            } catch (NumberFormatException ex) {
+                throw syntaxError("invalid number " + number);
+            }
+        }
+    }
+
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return this.value.charAt(0) == 't';
+    }
+
+    /**
+     * Skip the next value, with its content if it is an object or an array
+     */
+    void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                depth++;
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                depth++;
+                break;
+            case END_OBJECT:
+                endObject();
+                depth--;
+                break;
+            case END_ARRAY:
+                endArray();
+                depth--;
+                break;
+            case STRING:
+                this.peeked = null;
+                readString(false);
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("unexpected end of document");
+            default:
+                this.peeked = null;
+                break;
+            }
+        } while (depth > 0);
+    }
+
+    private void expect(Token expected) throws IOException {
+        final Token t = peek();
+        if (t != expected) {
+            throw syntaxError(expected + " expected but was " + t);
+        }
+        this.peeked = null;
+    }
+
+    private void push(int scope) {
+        if (this.stackSize == this.stack.length) {
+            final int[] newStack = new int[this.stackSize * 2];
+            System.arraycopy(this.stack, 0, newStack, 0, this.stackSize);
+            this.stack = newStack;
+        }
+        this.stack[this.stackSize++] = scope;
+    }
+
+    /**
+     * Read a string after its opening quote, up to its closing quote.
+     *
+     * @param store true to append the content to value
+     */
+    private void readString(boolean store) throws IOException {
+        while (true) {
+            if (!fill()) {
+                throw syntaxError("unterminated string");
+            }
+            // Copy the characters up to a quote or an escape at once
+            int start = this.pos;
+            while (this.pos < this.limit) {
+                final char c = this.buffer[this.pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                this.pos++;
+            }
+            if (store) {
+                this.value.append(this.buffer, start, this.pos - start);
+            }
+            if (this.pos == this.limit) {
+                continue;
+            }
+            final char c = this.buffer[this.pos++];
+            if (c == '"') {
+                return;
+            }
+            final char escaped = readChar();
+            char unescaped;
+            switch (escaped) {
+            case 'b':
+                unescaped = '\b';
+                break;
+            case 'f':
+                unescaped = '\f';
+                break;
+            case 'n':
+                unescaped = '\n';
+                break;
+            case 'r':
+                unescaped = '\r';
+                break;
+            case 't':
+                unescaped = '\t';
+                break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(readChar(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("invalid escape");
+                    }
+                    code = code * 16 + digit;
+                }
+                unescaped = (char) code;
+                break;
+            default:
+                // '"', '\\' and '/'
+                unescaped = escaped;
+                break;
+            }
+            if (store) {
+                this.value.append(unescaped);
+            }
+        }
+    }
+
+    private char readChar() throws IOException {
+        if (!fill()) {
+            throw syntaxError("unexpected end of document");
+        }
+        return this.buffer[this.pos++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (fill()) {
+            final char c = this.buffer[this.pos++];
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (this.pos < this.limit) {
+            return true;
+        }
+        this.offset += this.limit;
+        this.pos = 0;
+        this.limit = 0;
+        final int n = this.in.read(this.buffer, 0, this.buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        this.limit = n;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Invalid JSON : " + message + " at character " + (this.offset + this.pos));
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,111 @@
+package whisper;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+
+/**
+ * Latency percentiles per stage, refreshed when new utterances are recorded (checked every second).
+ */
+public class LatencyFrame extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    private final LatencyTracker tracker;
+    private final JTextArea t = new JTextArea();
+    private final Timer timer;
+    // Number of utterances of the displayed report
+    private long shown = -1;
+
+    public LatencyFrame(final LatencyTracker tracker) {
+        this.tracker = tracker;
+        setTitle("MisterWhisper - Latency");
+        setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        // TextArea
+        this.t.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        this.t.setEditable(false);
+        refresh();
+        // Buttons
+        final JPanel bottom = new JPanel();
+        bottom.setLayout(new FlowLayout(FlowLayout.LEFT));
+        final JButton saveButton = new JButton("Save report");
+        bottom.add(saveButton);
+        final JButton resetButton = new JButton("Reset");
+        bottom.add(resetButton);
+        // Main panel
+        final JPanel panel = new JPanel();
+        panel.setLayout(new BorderLayout());
+        panel.add(new JScrollPane(this.t), BorderLayout.CENTER);
+        panel.add(bottom, BorderLayout.SOUTH);
+        this.setContentPane(panel);
+
+        // Listeners
+        this.timer = new Timer(1000, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        this.timer.start();
+        saveButton.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                final JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File("mister-whisper-latency.txt"));
+                if (chooser.showSaveDialog(LatencyFrame.this) == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        tracker.dumpReport(chooser.getSelectedFile());
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        JOptionPane.showMessageDialog(LatencyFrame.this, "Cannot save report : " + ex.getMessage());
+                    }
+                }
+            }
+        });
+        resetButton.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                tracker.reset();
+                refresh();
+            }
+        });
+
+        this.addWindowListener(new WindowAdapter() {
+
+            @Override
+            public void windowClosed(WindowEvent e) {
+                LatencyFrame.this.timer.stop();
+            }
+        });
+    }
+
+    /**
+     * Update the report when utterances have been recorded, so the scroll and the selection are kept
+     * otherwise (the header of the report has the time)
+     */
+    private void refresh() {
+        final long completed = this.tracker.getCompleted();
+        if (completed != this.shown) {
+            this.shown = completed;
+            this.t.setText(this.tracker.getReport());
+        }
+    }
+}
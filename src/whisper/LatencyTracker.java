@@ -0,0 +1,202 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Time spent in each stage of the dictations, from the end of the capture to the text output.
+ *
+ * Each dictation (or speech segment) gets an Utterance, marked when it reaches a stage. Completed
+ * utterances feed rolling windows of durations per stage, used to compute percentiles.
+ */
+public class LatencyTracker {
+
+    /**
+     * Stages, in the order they are reached. The duration of a stage is the time since the previous
+     * marked stage.
+     */
+    public enum Stage {
+        CAPTURE_STOPPED("capture stop"), AUDIO_FLUSHED("buffer flush"), TRANSCRIPTION_STARTED("queue wait"), STATE_ACQUIRED("state wait"), CONVERTED("pcm conversion"),
+        ENCODER_STARTED("mel"), TRANSCRIBED("encode + decode"), UPLOADED("upload"), RESPONSE_RECEIVED("server + response"), OUTPUT_DONE("paste / type");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return this.label;
+        }
+    }
+
+    public static final class Utterance {
+        private final long[] marks = new long[Stage.values().length];
+
+        /**
+         * @param captureStopped System.nanoTime() of the end of the capture
+         */
+        public Utterance(long captureStopped) {
+            this.marks[Stage.CAPTURE_STOPPED.ordinal()] = captureStopped;
+        }
+
+        /**
+         * Mark a stage as reached now, only the first mark of a stage is kept.
+         */
+        public synchronized void mark(Stage stage) {
+            if (this.marks[stage.ordinal()] == 0) {
+                this.marks[stage.ordinal()] = System.nanoTime();
+            }
+        }
+
+        synchronized long[] getMarks() {
+            return this.marks.clone();
+        }
+    }
+
+    // Utterances being transcribed by the native states, for the native callbacks
+    private static final Map<Pointer, Utterance> RUNNING = new ConcurrentHashMap<>();
+
+    /**
+     * Associate an utterance to a whisper state during its transcription.
+     */
+    static void bind(Pointer state, Utterance u) {
+        if (u != null) {
+            RUNNING.put(state, u);
+        }
+    }
+
+    static void unbind(Pointer state) {
+        RUNNING.remove(state);
+    }
+
+    /**
+     * Called by whisper before the encoder starts, the mel spectrogram is computed.
+     */
+    static void encoderStarted(Pointer state) {
+        final Utterance u = RUNNING.get(state);
+        if (u != null) {
+            u.mark(Stage.ENCODER_STARTED);
+        }
+    }
+
+    private final int windowSize;
+    // Rolling windows of durations in ns, one per stage and one for the total
+    private final long[][] durations;
+    private final int[] counts;
+    private long completed;
+
+    /**
+     * @param windowSize number of utterances used for the percentiles
+     */
+    public LatencyTracker(int windowSize) {
+        this.windowSize = windowSize;
+        this.durations = new long[Stage.values().length + 1][windowSize];
+        this.counts = new int[Stage.values().length + 1];
+    }
+
+    /**
+     * Record the durations of an utterance.
+     */
+    public synchronized void complete(Utterance u) {
+        final long[] marks = u.getMarks();
+        long previous = marks[0];
+        long last = previous;
+        for (int i = 1; i < marks.length; i++) {
+            if (marks[i] != 0) {
+                add(i, marks[i] - previous);
+                previous = marks[i];
+                last = marks[i];
+            }
+        }
+        add(marks.length, last - marks[0]);
+        this.completed++;
+    }
+
+    private void add(int index, long duration) {
+        this.durations[index][this.counts[index] % this.windowSize] = duration;
+        this.counts[index]++;
+    }
+
+    /**
+     * @return the number of utterances recorded since the start or the last reset
+     */
+    public synchronized long getCompleted() {
+        return this.completed;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(this.counts, 0);
+        this.completed = 0;
+    }
+
+    /**
+     * @return the p50, p95 and p99 in ms of a stage (null for the total), null if never measured
+     */
+    public synchronized double[] getPercentiles(Stage stage) {
+        final int index = stage == null ? Stage.values().length : stage.ordinal();
+        final int n = Math.min(this.counts[index], this.windowSize);
+        if (n == 0) {
+            return null;
+        }
+        final long[] sorted = Arrays.copyOf(this.durations[index], n);
+        Arrays.sort(sorted);
+        return new double[] { percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99) };
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        // Nearest rank
+        final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1000000.0;
+    }
+
+    /**
+     * @return a one line summary of the total latency
+     */
+    public String getSummary() {
+        final double[] p = getPercentiles(null);
+        if (p == null) {
+            return "No latency measured yet";
+        }
+        return String.format("Latency p50 %.0f ms, p95 %.0f ms, p99 %.0f ms", p[0], p[1], p[2]);
+    }
+
+    /**
+     * @return the percentiles of all the stages
+     */
+    public synchronized String getReport() {
+        final StringBuilder b = new StringBuilder();
+        b.append("MisterWhisper latency report, ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())).append('\n');
+        b.append(this.completed).append(" utterances, percentiles over the last ").append(Math.min(this.completed, this.windowSize)).append("\n\n");
+        b.append(String.format("%-20s %8s %10s %10s %10s%n", "stage", "count", "p50 (ms)", "p95 (ms)", "p99 (ms)"));
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.CAPTURE_STOPPED) {
+                appendLine(b, stage.getLabel(), stage.ordinal());
+            }
+        }
+        appendLine(b, "total", Stage.values().length);
+        return b.toString();
+    }
+
+    private void appendLine(StringBuilder b, String label, int index) {
+        final double[] p = getPercentiles(index == Stage.values().length ? null : Stage.values()[index]);
+        if (p == null) {
+            b.append(String.format("%-20s %8d %10s %10s %10s%n", label, 0, "-", "-", "-"));
+        } else {
+            b.append(String.format("%-20s %8d %10.1f %10.1f %10.1f%n", label, this.counts[index], p[0], p[1], p[2]));
+        }
+    }
+
+    public void dumpReport(File file) throws IOException {
+        Files.write(file.toPath(), getReport().getBytes(StandardCharsets.UTF_8));
+    }
+}
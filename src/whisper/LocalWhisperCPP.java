@@ -1,72 +1,350 @@
 package whisper;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import io.github.ggerganov.whispercpp.WhisperCpp;
-import io.github.ggerganov.whispercpp.params.CBool;
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+import io.github.ggerganov.whispercpp.model.WhisperModelLoader;
 import io.github.ggerganov.whispercpp.params.WhisperFullParams;
-import io.github.ggerganov.whispercpp.params.WhisperSamplingStrategy;
 
+/**
+ * A loaded model and its whisper states.
+ *
+ * The instance is reference counted: the creator owns the first reference, each user of the model
+ * must call retain() before using it and release() when done. The native context is freed when the
+ * last reference is released, so a model can be replaced while transcriptions are running.
+ */
 public class LocalWhisperCPP {
-    private static WhisperCpp whisper = new WhisperCpp();
+    private final WhisperCpp whisper = new WhisperCpp();
+    // States of the context, shared by all the transcriptions
+    private final WhisperStatePool statePool;
+    // Released at the end of the warm up, transcriptions wait for it
+    private volatile CountDownLatch warmedUp = new CountDownLatch(0);
+    private int references = 1;
 
-    public LocalWhisperCPP(File model) throws FileNotFoundException {
-        whisper.initContext(model);
+    public LocalWhisperCPP(File model) throws IOException {
+        this(model, getDefaultParallelTranscriptions());
     }
 
+    /**
+     * @param parallelTranscriptions maximum number of transcriptions running at the same time, each
+     *            one needs its own whisper state (memory for the computations, not the model)
+     */
+    public LocalWhisperCPP(File model, int parallelTranscriptions) throws IOException {
+        this(new WhisperModelLoader(model), parallelTranscriptions);
+    }
+
+    /**
+     * @param loader the memory mapped model, use it to follow or cancel the loading
+     */
+    public LocalWhisperCPP(WhisperModelLoader loader, int parallelTranscriptions) throws IOException {
+        this.whisper.initContext(loader);
+        this.statePool = new WhisperStatePool(this.whisper, parallelTranscriptions);
+    }
+
+    /**
+     * Get a new reference on this model, to be released with release()
+     */
+    public synchronized LocalWhisperCPP retain() {
+        if (this.references <= 0) {
+            throw new IllegalStateException("model already freed");
+        }
+        this.references++;
+        return this;
+    }
+
+    /**
+     * Release a reference, the model is freed when the last one is released.
+     */
+    public void release() {
+        final boolean free;
+        synchronized (this) {
+            this.references--;
+            free = this.references == 0;
+        }
+        if (free) {
+            this.statePool.close();
+            this.whisper.close();
+        }
+    }
+
+    public static int getDefaultParallelTranscriptions() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4));
+    }
+
+    public int getParallelTranscriptions() {
+        return this.statePool.getMaxSize();
+    }
+
+    /**
+     * Transcribe an audio file, converted to 16kHz mono if needed.
+     */
     public String transcribe(File file) throws UnsupportedAudioFileException, IOException {
-        String result = "";
-        AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file);
+        try (SegmentedAudioStore audio = new SegmentedAudioStore()) {
+            AudioFileDecoder.decode(file, audio);
+            return transcribe(audio, 0);
+        }
+    }
 
-        byte[] b = new byte[audioInputStream.available()];
-        float[] floats = new float[b.length / 2];
+    public String transcribeRaw(byte[] pcmData) throws IOException {
+        int numSamples = pcmData.length / 2;
+        float[] floats = new float[numSamples];
+        PcmConverter.getInstance().toFloats(pcmData, 0, numSamples, floats, 0, null);
 
-        WhisperFullParams params = whisper.getFullDefaultParams(WhisperSamplingStrategy.WHISPER_SAMPLING_BEAM_SEARCH);
-        params.setProgressCallback((ctx, state, progress, user_data) -> System.out.println("progress: " + progress));
-        params.print_progress = CBool.FALSE;
-        params.language = "auto";
+        return transcribeRaw(floats);
+    }
 
-        params.n_threads = Runtime.getRuntime().availableProcessors();
+    public String transcribeRaw(float[] floats) throws IOException {
+        return transcribeAndRelease(acquireState(), floats);
+    }
 
+    /**
+     * Transcribe a whole recording. The samples are converted directly in the native buffer of the
+     * whisper state.
+     *
+     * @param minLength minimum length in samples, the audio is padded with silence
+     */
+    public String transcribe(SegmentedAudioStore audio, int minLength) throws IOException {
+        return transcribe(audio, minLength, null);
+    }
+
+    /**
+     * Same as transcribe(SegmentedAudioStore, int), marking the stages of the given utterance (can
+     * be null)
+     */
+    public String transcribe(SegmentedAudioStore audio, int minLength, LatencyTracker.Utterance utterance) throws IOException {
+        final WhisperStatePool.State state = acquireState();
         try {
-            int r = audioInputStream.read(b);
+            mark(utterance, LatencyTracker.Stage.STATE_ACQUIRED);
+            final long size = audio.size();
+            final FloatBuffer samples = state.getSamplesBuffer(audio.getSampleCount(0, size, minLength));
+            audio.toFloats(0, size, samples);
+            samples.flip();
+            mark(utterance, LatencyTracker.Stage.CONVERTED);
+
+            WhisperFullParams params = state.getParams(this.whisper, DecodingProfile.DICTATION);
+            params.n_threads = getThreadCount();
+            params.writeField("n_threads");
 
-            for (int i = 0, j = 0; i < r; i += 2, j++) {
-                short sample = (short) (((b[i + 1] & 0xFF) << 8) | (b[i] & 0xFF));
-                floats[j] = sample / 32768.0f;
+            LatencyTracker.bind(state.getPointer(), utterance);
+            final String text = this.whisper.fullTranscribe(state.getPointer(), params, samples);
+            mark(utterance, LatencyTracker.Stage.TRANSCRIBED);
+            return text;
+        } finally {
+            LatencyTracker.unbind(state.getPointer());
+            releaseState(state);
+        }
+    }
+
+    private static void mark(LatencyTracker.Utterance utterance, LatencyTracker.Stage stage) {
+        if (utterance != null) {
+            utterance.mark(stage);
+        }
+    }
+
+    private String transcribeAndRelease(WhisperStatePool.State state, float[] floats) throws IOException {
+        try {
+            WhisperFullParams params = state.getParams(this.whisper, DecodingProfile.DICTATION);
+            params.n_threads = getThreadCount();
+            params.writeField("n_threads");
+
+            return this.whisper.fullTranscribe(state.getPointer(), params, floats);
+        } finally {
+            releaseState(state);
+        }
+    }
+
+    /**
+     * Transcribe a short synthetic clip with each state of the pool in a background thread, so no
+     * real transcription pays for the backend initialisation, the state creation and the graph
+     * allocation, even when several run at the same time. Transcriptions started meanwhile wait for
+     * the end of the warm up.
+     *
+     * @param whenDone called from the warm up thread at the end of the warm up (can be null)
+     */
+    public void warmUp(final Runnable whenDone) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        this.warmedUp = latch;
+        retain();
+        final Thread t = new Thread(() -> {
+            try {
+                warmUpNow();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                latch.countDown();
+                release();
+                if (whenDone != null) {
+                    whenDone.run();
+                }
             }
+        }, "whisper-warm-up");
+        t.setDaemon(true);
+        t.start();
+    }
 
-            result = whisper.fullTranscribe(params, floats);
+    /**
+     * Same as warmUp() but in the calling thread.
+     */
+    public void warmUpNow() throws IOException, InterruptedException {
+        warmUpNow(this.statePool.getMaxSize());
+    }
 
+    /**
+     * Same as warmUpNow() for the first states only, the others are created when needed.
+     */
+    public void warmUpNow(int count) throws IOException, InterruptedException {
+        final float[] samples = new float[32000];
+        final Random random = new Random(0);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) (random.nextGaussian() * 0.001);
+        }
+        long t1 = System.currentTimeMillis();
+        // The states are acquired at once, so the pool creates each of them
+        final Deque<WhisperStatePool.State> states = new ArrayDeque<>(count);
+        try {
+            while (states.size() < count) {
+                states.push(this.statePool.acquire());
+            }
+            // Beam search, the dictation profile, allocates the most decoders
+            while (!states.isEmpty()) {
+                transcribeAndRelease(states.pop(), samples);
+            }
         } finally {
-            audioInputStream.close();
+            for (WhisperStatePool.State state : states) {
+                releaseState(state);
+            }
         }
-        return result;
+        long t2 = System.currentTimeMillis();
+        System.out.println("Whisper warm up of " + count + " states done in " + (t2 - t1) + " ms");
     }
 
-    public String transcribeRaw(byte[] pcmData) throws IOException {
-        int numSamples = pcmData.length / 2;
-        float[] floats = new float[numSamples];
+    public boolean isWarmingUp() {
+        return this.warmedUp.getCount() > 0;
+    }
+
+    /**
+     * Get a state from the pool, waiting if all the states are used. The state must be given back
+     * with releaseState()
+     *
+     * @throws IOException if the model is freed or a new state can't be allocated
+     */
+    public WhisperStatePool.State acquireState() throws IOException {
+        try {
+            this.warmedUp.await();
+            return this.statePool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a whisper state");
+        } catch (IllegalStateException e) {
+            // Pool closed or native allocation failure
+            throw new IOException(e.getMessage(), e);
+        }
+    }
 
-        for (int i = 0, j = 0; i < pcmData.length; i += 2, j++) {
-            short sample = (short) (((pcmData[i + 1] & 0xFF) << 8) | (pcmData[i] & 0xFF));
-            floats[j] = sample / 32768.0f;
+    /**
+     * Same as acquireState(), for a background transcription : waits while interactive
+     * transcriptions are running or waiting. The state should be released between short parts of the
+     * audio.
+     */
+    public WhisperStatePool.State acquireBackgroundState() throws IOException {
+        try {
+            this.warmedUp.await();
+            return this.statePool.acquireBackground();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a whisper state");
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
         }
+    }
 
-        WhisperFullParams params = whisper.getFullDefaultParams(WhisperSamplingStrategy.WHISPER_SAMPLING_BEAM_SEARCH);
-        params.setProgressCallback((ctx, state, progress, user_data) -> System.out.println("progress: " + progress));
-        params.print_progress = CBool.FALSE;
-        params.language = "auto";
+    public void releaseState(WhisperStatePool.State state) {
+        this.statePool.release(state);
+    }
+
+    /**
+     * Transcribe samples using the given state, with greedy sampling (fast enough to be run again and
+     * again on a growing window)
+     *
+     * @param prompt previous text, used as initial prompt for the decoder (can be null)
+     */
+    public List<WhisperSegment> transcribeRaw(WhisperStatePool.State state, float[] samples, String prompt) throws IOException {
+        return transcribeRaw(state, DecodingProfile.STREAMING, samples, prompt);
+    }
 
-        params.n_threads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Transcribe samples using the given state and decoding profile.
+     *
+     * @param prompt used as initial prompt for the decoder (can be null)
+     */
+    public List<WhisperSegment> transcribeRaw(WhisperStatePool.State state, DecodingProfile profile, float[] samples, String prompt) throws IOException {
+        return this.whisper.fullTranscribeWithTime(state.getPointer(), getParams(state, profile, prompt), samples);
+    }
+
+    /**
+     * Transcribe a part of a recording using the given state and decoding profile. The samples are
+     * converted directly in the native buffer of the state.
+     *
+     * @param from start position in bytes
+     * @param to end position in bytes
+     * @param minLength minimum length in samples, the audio is padded with silence
+     * @param prompt used as initial prompt for the decoder (can be null)
+     */
+    public List<WhisperSegment> transcribe(WhisperStatePool.State state, DecodingProfile profile, SegmentedAudioStore audio, long from, long to, int minLength, String prompt)
+            throws IOException {
+        final FloatBuffer samples = state.getSamplesBuffer(audio.getSampleCount(from, to, minLength));
+        audio.toFloats(from, to, samples);
+        samples.flip();
+        return this.whisper.fullTranscribeWithTime(state.getPointer(), getParams(state, profile, prompt), samples);
+    }
+
+    /**
+     * Transcribe samples using the given state and decoding profile. The samples are copied in the
+     * native buffer of the state.
+     *
+     * @param minLength minimum length in samples, the audio is padded with silence
+     * @param prompt used as initial prompt for the decoder (can be null)
+     */
+    public List<WhisperSegment> transcribe(WhisperStatePool.State state, DecodingProfile profile, float[] samples, int offset, int length, int minLength, String prompt)
+            throws IOException {
+        final FloatBuffer buffer = state.getSamplesBuffer(Math.max(length, minLength));
+        buffer.put(samples, offset, length);
+        while (buffer.hasRemaining()) {
+            buffer.put(0f);
+        }
+        buffer.flip();
+        return this.whisper.fullTranscribeWithTime(state.getPointer(), getParams(state, profile, prompt), buffer);
+    }
+
+    private WhisperFullParams getParams(WhisperStatePool.State state, DecodingProfile profile, String prompt) {
+        WhisperFullParams params = state.getParams(this.whisper, profile);
+        params.n_threads = getThreadCount();
+        params.writeField("n_threads");
+        if (!Objects.equals(params.initial_prompt, prompt)) {
+            params.initial_prompt = prompt;
+            params.writeField("initial_prompt");
+        }
+        return params;
+    }
 
-        return whisper.fullTranscribe(params, floats);
+    /**
+     * @return the number of threads for a new transcription, the cores are shared by the running
+     *         transcriptions
+     */
+    private int getThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, this.statePool.getInUseCount()));
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,353 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Transcription of long recordings (meetings, hours of audio) in bounded memory.
+ *
+ * The audio is read as a stream, one 30s window at a time (the length whisper works on). The
+ * segments of a window are written as soon as it is transcribed, except the ones ending close to the
+ * end of the window : they may be cut by the window. The next window starts at the end of the last
+ * written segment, so the held back audio is transcribed again with its following context. When the
+ * first new segment is the one ending close to the end, the next window starts at its start, and it
+ * is only written as is when it starts with the window (continuous speech longer than a window).
+ * Segments ending before what is already written are dropped (the overlap). The text written so far
+ * is the prompt of the next window.
+ *
+ * Only one window of samples is in memory, whatever the length of the audio.
+ *
+ * The end of the written segments is recorded in a checkpoint journal after each window : a
+ * transcription interrupted by a crash is resumed at the last checkpoint, unless --restart is given.
+ *
+ * Usage: java -cp ... whisper.LongFormTranscriber [--model file.bin] [--format srt|vtt|jsonl|txt]
+ * [--output file] [--restart] audio-file
+ */
+public class LongFormTranscriber {
+    // whisper works on 30s
+    private static final int WINDOW = 30 * 16000;
+    // Advance of the window when nothing is written (silence), in samples
+    private static final int STEP = 25 * 16000;
+    // Segments ending closer to the end of a window may be cut
+    private static final int END_MARGIN = 2 * 16000;
+    // Minimum advance of the window, so a window with a single long segment can't be repeated
+    private static final int MIN_ADVANCE = 16000;
+    // Shorter windows in background, so an interactive transcription waits less for the state
+    private static final int BACKGROUND_WINDOW = 10 * 16000;
+    private static final int BACKGROUND_STEP = 8 * 16000;
+    // whisper ignores the audio shorter than 1s
+    private static final int MIN_SAMPLES = 16000 + 1600;
+    private static final int MAX_PROMPT_LENGTH = 200;
+
+    private final LocalWhisperCPP whisper;
+    private final DecodingProfile profile;
+    private CheckpointJournal journal;
+    private String journalPath;
+    private boolean background;
+    private int windowSize = WINDOW;
+    private int step = STEP;
+
+    public LongFormTranscriber(LocalWhisperCPP whisper, DecodingProfile profile) {
+        this.whisper = whisper;
+        this.profile = profile;
+    }
+
+    /**
+     * Record a checkpoint after each window
+     *
+     * @param path the output, identifying the checkpoints in the journal
+     */
+    public void setJournal(CheckpointJournal journal, String path) {
+        this.journal = journal;
+        this.journalPath = path;
+    }
+
+    /**
+     * @param background true to give way to the interactive transcriptions : the whisper state is
+     *            acquired with a lower priority for each window, instead of once for the whole audio,
+     *            and the windows are 10s long instead of 30s (more encoder runs, but a dictation waits
+     *            for the end of a shorter decoding)
+     */
+    public void setBackground(boolean background) {
+        this.background = background;
+        this.windowSize = background ? BACKGROUND_WINDOW : WINDOW;
+        this.step = background ? BACKGROUND_STEP : STEP;
+    }
+
+    /**
+     * Transcribe an audio file, converted to 16kHz mono if needed.
+     *
+     * @return the duration of the audio in seconds
+     */
+    public double transcribe(File file, SegmentWriter writer) throws UnsupportedAudioFileException, IOException {
+        return transcribe(file, writer, 0);
+    }
+
+    /**
+     * Transcribe an audio file from a position, for example a checkpoint.
+     *
+     * @param start in centiseconds
+     * @return the duration of the audio in seconds
+     */
+    public double transcribe(File file, SegmentWriter writer, long start) throws UnsupportedAudioFileException, IOException {
+        try (InputStream in = AudioFileDecoder.open(file)) {
+            return transcribe(in, writer, start);
+        }
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio, until the end of the stream.
+     *
+     * @param writer where the segments are written, with their times from the start of the stream
+     * @return the duration of the audio in seconds
+     */
+    public double transcribe(InputStream in, SegmentWriter writer) throws IOException {
+        return transcribe(in, writer, 0);
+    }
+
+    /**
+     * Same as transcribe(InputStream, SegmentWriter), skipping the start of the stream.
+     *
+     * @param offset in centiseconds
+     */
+    public double transcribe(InputStream in, SegmentWriter writer, long offset) throws IOException {
+        return transcribe(in, writer, null, offset);
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio to a list of segments, without checkpoints, for the
+     * callers needing all the segments (whisper is still given one window at a time).
+     *
+     * @return the segments, with their times from the start of the stream
+     */
+    public List<WhisperSegment> transcribeToList(InputStream in) throws IOException {
+        final List<WhisperSegment> segments = new ArrayList<>();
+        transcribe(in, null, segments, 0);
+        return segments;
+    }
+
+    /**
+     * @param writer where the segments are written, null to add them to the list
+     */
+    private double transcribe(InputStream in, SegmentWriter writer, List<WhisperSegment> list, long offset) throws IOException {
+        final float[] window = new float[this.windowSize];
+        final byte[] bytes = new byte[16 * 1024];
+        // Odd byte of the previous read
+        int pendingBytes = 0;
+        boolean eof = false;
+        // Position of the window in the stream and number of samples in it
+        long windowStart = skip(in, offset * 160 * 2) / 2;
+        int length = 0;
+        // End of the written segments, in samples
+        long written = windowStart;
+        String prompt = null;
+        WhisperStatePool.State state = this.background ? null : this.whisper.acquireState();
+        try {
+            while (true) {
+                while (!eof && length < this.windowSize) {
+                    final int n = in.read(bytes, pendingBytes, Math.min(bytes.length, 2 * (this.windowSize - length)) - pendingBytes);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    final int available = pendingBytes + n;
+                    final int samples = available / 2;
+                    PcmConverter.getInstance().toFloats(bytes, 0, samples, window, length, null);
+                    length += samples;
+                    pendingBytes = available % 2;
+                    if (pendingBytes == 1) {
+                        bytes[0] = bytes[available - 1];
+                    }
+                }
+                if (length == 0) {
+                    break;
+                }
+                if (this.background) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("background transcription interrupted");
+                    }
+                    state = this.whisper.acquireBackgroundState();
+                }
+                final long t = System.currentTimeMillis();
+                final List<WhisperSegment> segments;
+                try {
+                    segments = this.whisper.transcribe(state, this.profile, window, 0, length, MIN_SAMPLES, prompt);
+                } finally {
+                    if (this.background) {
+                        // Yield to the interactive transcriptions between the windows
+                        this.whisper.releaseState(state);
+                        state = null;
+                    }
+                }
+                final long windowEnd = windowStart + length;
+                int kept = 0;
+                // Start of the next window when the first new segment may be cut, -1 if none
+                long restart = -1;
+                for (int i = 0; i < segments.size(); i++) {
+                    final WhisperSegment s = segments.get(i);
+                    // Centiseconds in the window to samples in the stream
+                    final long start = windowStart + s.getStart() * 160;
+                    final long end = Math.min(windowEnd, windowStart + s.getEnd() * 160);
+                    if (end <= written) {
+                        // Already written with the previous window
+                        continue;
+                    }
+                    if (!eof && end > windowEnd - END_MARGIN) {
+                        if (kept > 0) {
+                            // Transcribed again with the next window
+                            break;
+                        }
+                        if (start >= windowStart + MIN_ADVANCE) {
+                            // Transcribed again with the next window, starting with it
+                            restart = start;
+                            break;
+                        }
+                        // Spanning the whole window (continuous speech) : written, even if cut
+                    }
+                    final WhisperSegment segment = new WhisperSegment(start / 160, end / 160, s.getSentence());
+                    if (writer != null) {
+                        writer.write(segment);
+                    } else {
+                        list.add(segment);
+                    }
+                    written = end;
+                    prompt = getPrompt(prompt, s.getSentence());
+                    kept++;
+                }
+                System.out.println(String.format(Locale.ROOT, "Window %s - %s transcribed in %d ms, %d segments written", SegmentWriter.formatTime(windowStart / 160, '.'),
+                        SegmentWriter.formatTime(windowEnd / 160, '.'), System.currentTimeMillis() - t, kept));
+                if (this.journal != null && writer != null && kept > 0) {
+                    this.journal.checkpoint(this.journalPath, written / 160, writer.getCount(), writer.getBytes());
+                }
+                if (eof) {
+                    break;
+                }
+                final long next;
+                if (kept > 0) {
+                    next = Math.max(written, windowStart + MIN_ADVANCE);
+                } else if (restart >= 0) {
+                    next = restart;
+                } else {
+                    next = windowStart + this.step;
+                }
+                final int drop = (int) Math.min(length, next - windowStart);
+                System.arraycopy(window, drop, window, 0, length - drop);
+                length -= drop;
+                windowStart += drop;
+            }
+            return (windowStart + length) / 16000.0;
+        } finally {
+            if (state != null) {
+                this.whisper.releaseState(state);
+            }
+        }
+    }
+
+    /**
+     * Skip the start of a stream (the converted streams may skip less than asked, or nothing)
+     *
+     * @return the number of bytes skipped, less than asked at the end of the stream
+     */
+    private static long skip(InputStream in, long n) throws IOException {
+        final byte[] buffer = new byte[16 * 1024];
+        long skipped = 0;
+        while (skipped < n) {
+            long s = in.skip(n - skipped);
+            if (s <= 0) {
+                s = in.read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (s < 0) {
+                    break;
+                }
+            }
+            skipped += s;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return the end of the text written so far
+     */
+    private static String getPrompt(String prompt, String text) {
+        final String p = prompt == null ? text : prompt + text;
+        return p.length() <= MAX_PROMPT_LENGTH ? p : p.substring(p.length() - MAX_PROMPT_LENGTH);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Preferences prefs = Preferences.userRoot().node("mister-whisper");
+        File model = new File("models", prefs.get("model", "ggml-large-v3-turbo-q8_0.bin"));
+        SegmentWriter.Format format = SegmentWriter.Format.SRT;
+        File output = null;
+        File input = null;
+        boolean restart = false;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("--model")) {
+                model = new File(args[++i]);
+            } else if (arg.equals("--format")) {
+                format = SegmentWriter.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--output")) {
+                output = new File(args[++i]);
+            } else if (arg.equals("--restart")) {
+                restart = true;
+            } else if (!arg.startsWith("--")) {
+                input = new File(arg);
+            }
+        }
+        if (input == null) {
+            System.out.println("Usage: LongFormTranscriber [--model file.bin] [--format srt|vtt|jsonl|txt] [--output file] [--restart] audio-file");
+            System.exit(1);
+        }
+        if (output == null) {
+            final String name = input.getName();
+            final int dot = name.lastIndexOf('.');
+            output = new File(input.getAbsoluteFile().getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "." + format.getExtension());
+        }
+        final File journalFile = new File(output.getPath() + ".journal");
+        if (restart) {
+            Files.deleteIfExists(journalFile.toPath());
+        }
+        final CheckpointJournal journal = new CheckpointJournal(journalFile);
+        final String path = output.getAbsolutePath();
+        final CheckpointJournal.Checkpoint checkpoint = journal.getCheckpoint(path);
+        final LocalWhisperCPP whisper = new LocalWhisperCPP(model, 1);
+        System.out.println("Long form transcription of " + input + " to " + output + " using " + model.getName());
+        final long t = System.currentTimeMillis();
+        final double duration;
+        SegmentWriter writer = null;
+        long start = 0;
+        if (checkpoint != null) {
+            try {
+                writer = SegmentWriter.resume(output, format, checkpoint.getCount(), checkpoint.getBytes());
+                start = checkpoint.getOffset();
+                System.out.println("Resuming at " + SegmentWriter.formatTime(start, '.') + " (" + checkpoint.getCount() + " segments written)");
+            } catch (IOException e) {
+                System.out.println("Cannot resume, restarting : " + e.getMessage());
+            }
+        }
+        if (writer == null) {
+            writer = SegmentWriter.open(output, format);
+        }
+        try {
+            final LongFormTranscriber transcriber = new LongFormTranscriber(whisper, BatchTranscriber.BATCH);
+            transcriber.setJournal(journal, path);
+            duration = transcriber.transcribe(input, writer, start);
+        } finally {
+            writer.close();
+        }
+        journal.delete();
+        final double elapsed = (System.currentTimeMillis() - t) / 1000.0;
+        System.out.println(String.format(Locale.ROOT, "%.1f min of audio transcribed in %.1fs, real time factor %.3f", duration / 60, elapsed, elapsed / Math.max(0.001, duration)));
+        whisper.release();
+    }
+}
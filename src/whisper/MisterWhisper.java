@@ -25,21 +25,20 @@ import java.awt.event.ItemListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -58,6 +57,7 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.event.ChangeEvent;
@@ -68,6 +68,8 @@ import com.github.kwhat.jnativehook.NativeHookException;
 import com.github.kwhat.jnativehook.keyboard.NativeKeyEvent;
 import com.github.kwhat.jnativehook.keyboard.NativeKeyListener;
 
+import io.github.ggerganov.whispercpp.model.WhisperModelLoader;
+
 public class MisterWhisper implements NativeKeyListener {
 
     private static final int MIN_AUDIO_DATA_LENGTH = (int) (16000 * 2.1);
@@ -76,8 +78,18 @@ public class MisterWhisper implements NativeKeyListener {
 
     // Whisper
     private LocalWhisperCPP w;
+    // Cancellation flag of the model being loaded, null if none
+    private AtomicBoolean modelLoading;
+    private String modelLoadingName;
+    private WhisperModelLoader modelLoader;
+    private long modelLoadingStartTime;
+    private final Timer modelLoadingTimer;
+    private final List<CheckboxMenuItem> modelMenuItems = new ArrayList<>();
+    private final List<MenuItem> cancelModelLoadingItems = new ArrayList<>();
     private String model;
-    private String remoteUrl;
+    // Remote servers, shared by all the requests to keep the connections alive
+    private RemoteEndpointPool remote;
+    private final AtomicBoolean remotePrewarming = new AtomicBoolean();
     // Tray icon
     private TrayIcon trayIcon;
     private Image imageRecording;
@@ -86,13 +98,25 @@ public class MisterWhisper implements NativeKeyListener {
 
     // Execution services
     private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // Transcriptions of the recordings and of the silence-split chunks, run in parallel
+    private ExecutorService transcriptionService;
+    private final SequencedOutput sequencedOutput = new SequencedOutput();
     private ExecutorService audioService = Executors.newSingleThreadExecutor();
+    private ExecutorService modelLoaderService = Executors.newSingleThreadExecutor();
+    private ExecutorService remotePrewarmService = Executors.newSingleThreadExecutor();
+    // Watched folders transcribed in background, with the local model
+    private InboxWatcher inbox;
 
     // Audio capture
     private AudioFormat audioFormat;
 
     private boolean recording;
-    private boolean transcribing;
+    // System.nanoTime() of the last stop request
+    private volatile long captureStopTime;
+    private final LatencyTracker latency = new LatencyTracker(1000);
+    // Number of running transcriptions
+    private int transcribing;
+    private boolean warmingUp;
 
     // History
     private List<String> history = new ArrayList<>();
@@ -126,12 +150,22 @@ public class MisterWhisper implements NativeKeyListener {
         COPY_TO_CLIPBOARD_AND_PASTE, TYPE_STRING, NOTHING
     }
 
-    public MisterWhisper(String remoteUrl) throws FileNotFoundException, NativeHookException {
+    /**
+     * @param remoteUrls the whisper.cpp servers to use, empty for local transcriptions
+     */
+    public MisterWhisper(List<String> remoteUrls) throws IOException, NativeHookException {
         if (MisterWhisper.ALLOWED_HOTKEYS.length != MisterWhisper.ALLOWED_HOTKEYS_CODE.length) {
             throw new IllegalStateException("ALLOWED_HOTKEYS size mismatch");
         }
 
         this.prefs = Preferences.userRoot().node("mister-whisper");
+        this.modelLoadingTimer = new Timer(1000, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateToolTip();
+            }
+        });
         this.hotkey = this.prefs.get("hotkey", "F9");
         this.shiftHotkey = this.prefs.getBoolean("shift-hotkey", false);
         this.ctrltHotkey = this.prefs.getBoolean("ctrl-hotkey", false);
@@ -147,9 +181,26 @@ public class MisterWhisper implements NativeKeyListener {
         boolean signed = true;
         boolean bigEndian = false;
         this.audioFormat = new AudioFormat(sampleRate, sampleSizeInBits, channels, signed, bigEndian);
+        AudioSegmentPool.getInstance().setSpillThreshold(this.prefs.getLong("audio.spill-threshold-mb", 32) * 1024 * 1024);
 
-        this.remoteUrl = remoteUrl;
-        if (remoteUrl == null) {
+        if (!remoteUrls.isEmpty()) {
+            this.remote = new RemoteEndpointPool(remoteUrls, this.prefs.getInt("remote.connect-timeout-ms", 5000), this.prefs.getInt("remote.read-timeout-ms", 120000));
+            this.remote.setHedging(this.prefs.getBoolean("remote.hedging", false));
+            if (this.prefs.get("remote.upload-format", "wav").equalsIgnoreCase("flac")) {
+                this.remote.setUploadFormat(RemoteWhisperCPP.UploadFormat.FLAC);
+            }
+            if (this.remote.getEndpointCount() == 1 && this.prefs.getBoolean("remote.hedging-local", false)) {
+                // Local model as a backup of the single server
+                final File localModel = new File("models", this.model);
+                try {
+                    this.remote.setLocalHedge(new LocalWhisperCPP(localModel, 1));
+                    System.out.println("Local model " + localModel.getName() + " used when the server is slow");
+                } catch (IOException | UnsatisfiedLinkError e) {
+                    System.out.println("Cannot load local model " + localModel.getAbsolutePath() + " (" + e.getMessage() + ")");
+                }
+            }
+        }
+        if (this.remote == null) {
 
             File dir = new File("models");
             if (!dir.exists()) {
@@ -195,10 +246,14 @@ public class MisterWhisper implements NativeKeyListener {
                 }
             }
 
-            this.w = new LocalWhisperCPP(new File(dir, this.model));
+            this.w = new LocalWhisperCPP(new File(dir, this.model), this.prefs.getInt("parallel-transcriptions", LocalWhisperCPP.getDefaultParallelTranscriptions()));
             System.out.println("MisterWhisper using WhisperCPP with " + this.model);
+            this.transcriptionService = Executors.newFixedThreadPool(this.w.getParallelTranscriptions());
+            warmUp();
+            startInboxWatcher();
         } else {
-            System.out.println("MisterWhisper using remote speech to text service : " + remoteUrl);
+            System.out.println("MisterWhisper using remote speech to text service : " + remoteUrls);
+            this.transcriptionService = Executors.newFixedThreadPool(4);
         }
     }
 
@@ -209,6 +264,10 @@ public class MisterWhisper implements NativeKeyListener {
 
         this.trayIcon = new TrayIcon(this.imageInactive, "Press " + this.hotkey + " to record");
         this.trayIcon.setImageAutoSize(true);
+        if (isWarmingUp()) {
+            updateToolTip();
+            updateIcon();
+        }
         final SystemTray tray = SystemTray.getSystemTray();
         final Frame frame = new Frame("");
         frame.setUndecorated(true);
@@ -291,6 +350,24 @@ public class MisterWhisper implements NativeKeyListener {
             }
         });
         popup.add(detectSilece);
+        if (this.remote == null) {
+            CheckboxMenuItem streaming = new CheckboxMenuItem("Live transcription");
+            streaming.setState(this.prefs.getBoolean("streaming", false));
+            streaming.addItemListener(new ItemListener() {
+
+                @Override
+                public void itemStateChanged(ItemEvent e) {
+                    MisterWhisper.this.prefs.putBoolean("streaming", streaming.getState());
+                    try {
+                        MisterWhisper.this.prefs.sync();
+                    } catch (BackingStoreException e1) {
+                        e1.printStackTrace();
+                        JOptionPane.showMessageDialog(null, "Cannot save preferences\n" + e1.getMessage());
+                    }
+                }
+            });
+            popup.add(streaming);
+        }
         Menu hotkeysMenu = new Menu("Keyboard shortcut");
         // Shift hotkey modifier
         final CheckboxMenuItem shiftHotkeyMenuItem = new CheckboxMenuItem("SHIFT");
@@ -360,11 +437,10 @@ public class MisterWhisper implements NativeKeyListener {
             });
         }
 
-        if (this.remoteUrl == null) {
+        if (this.remote == null) {
             Menu modelMenu = new Menu("Models");
 
             final File dir = new File("models");
-            List<CheckboxMenuItem> allModels = new ArrayList<>();
             if (new File(dir, this.model).exists()) {
                 for (File f : dir.listFiles()) {
                     final String name = f.getName();
@@ -376,7 +452,7 @@ public class MisterWhisper implements NativeKeyListener {
                         cleanName = cleanName.replace("-", " ");
                         cleanName = cleanName.trim();
                         final CheckboxMenuItem modelItem = new CheckboxMenuItem(cleanName);
-
+                        modelItem.setActionCommand(name);
                         modelItem.setState(selected);
 
                         modelItem.addItemListener(new ItemListener() {
@@ -384,31 +460,34 @@ public class MisterWhisper implements NativeKeyListener {
                             @Override
                             public void itemStateChanged(ItemEvent e) {
                                 if (modelItem.getState()) {
-                                    // Deselected others
-                                    for (CheckboxMenuItem item : allModels) {
-                                        if (item != modelItem) {
-                                            item.setState(false);
-                                        }
-                                    }
-                                    // Apply model
-                                    MisterWhisper.this.model = f.getName();
-                                    setModelPref(MisterWhisper.this.model);
-                                    try {
-                                        MisterWhisper.this.w = new LocalWhisperCPP(f);
-                                    } catch (FileNotFoundException e1) {
-                                        JOptionPane.showMessageDialog(null, e1.getMessage());
-                                        e1.printStackTrace();
+                                    if (!name.equals(MisterWhisper.this.model)) {
+                                        loadModel(f);
+                                    } else {
+                                        cancelModelLoading();
                                     }
                                 }
+                                updateModelMenuItems();
                             }
 
                         });
-                        allModels.add(modelItem);
+                        MisterWhisper.this.modelMenuItems.add(modelItem);
                         modelMenu.add(modelItem);
                     }
                 }
             }
 
+            modelMenu.addSeparator();
+            final MenuItem cancelItem = new MenuItem("Cancel model loading");
+            cancelItem.setEnabled(this.modelLoading != null);
+            cancelItem.addActionListener(new ActionListener() {
+
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    cancelModelLoading();
+                }
+            });
+            this.cancelModelLoadingItems.add(cancelItem);
+            modelMenu.add(cancelItem);
             popup.add(modelMenu);
         }
         popup.add(hotkeysMenu);
@@ -574,6 +653,16 @@ public class MisterWhisper implements NativeKeyListener {
 
         popup.add(historyItem);
 
+        final MenuItem latencyItem = new MenuItem("Latency report");
+        popup.add(latencyItem);
+        latencyItem.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showLatencyReport();
+            }
+        });
+
         popup.addSeparator();
         MenuItem exitItem = new MenuItem("Exit");
         popup.add(exitItem);
@@ -581,6 +670,7 @@ public class MisterWhisper implements NativeKeyListener {
 
             @Override
             public void actionPerformed(ActionEvent e) {
+                stopInboxWatcher();
                 System.exit(0);
 
             }
@@ -596,6 +686,151 @@ public class MisterWhisper implements NativeKeyListener {
         return popup;
     }
 
+    /**
+     * @return the current local model, with a reference which must be released after use
+     */
+    private synchronized LocalWhisperCPP retainLocalWhisper() {
+        return this.w.retain();
+    }
+
+    /**
+     * Load a model in background and swap it with the current one once it is loaded and warmed up.
+     * The current model is used meanwhile and freed when the transcriptions using it are done.
+     */
+    private void loadModel(final File f) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        synchronized (this) {
+            if (this.modelLoading != null) {
+                this.modelLoading.set(true);
+                if (this.modelLoader != null) {
+                    this.modelLoader.cancel();
+                }
+            }
+            this.modelLoading = cancelled;
+            this.modelLoader = null;
+            this.modelLoadingName = f.getName();
+            this.modelLoadingStartTime = System.currentTimeMillis();
+        }
+        modelLoadingChanged();
+        final int parallelTranscriptions = this.prefs.getInt("parallel-transcriptions", LocalWhisperCPP.getDefaultParallelTranscriptions());
+        this.modelLoaderService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (cancelled.get()) {
+                    return;
+                }
+                LocalWhisperCPP loaded = null;
+                try {
+                    final WhisperModelLoader loader = new WhisperModelLoader(f);
+                    synchronized (MisterWhisper.this) {
+                        if (MisterWhisper.this.modelLoading == cancelled) {
+                            MisterWhisper.this.modelLoader = loader;
+                        } else {
+                            loader.cancel();
+                        }
+                    }
+                    loaded = new LocalWhisperCPP(loader, parallelTranscriptions);
+                    if (!cancelled.get()) {
+                        loaded.warmUpNow();
+                    }
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    if (!cancelled.get()) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                JOptionPane.showMessageDialog(null, "Cannot load model " + f.getName() + "\n" + e.getMessage());
+                            }
+                        });
+                    }
+                    if (loaded != null) {
+                        loaded.release();
+                        loaded = null;
+                    }
+                }
+                final LocalWhisperCPP toRelease;
+                synchronized (MisterWhisper.this) {
+                    if (cancelled.get() || loaded == null) {
+                        toRelease = loaded;
+                    } else {
+                        toRelease = MisterWhisper.this.w;
+                        MisterWhisper.this.w = loaded;
+                        MisterWhisper.this.model = f.getName();
+                        System.out.println("MisterWhisper using WhisperCPP with " + MisterWhisper.this.model);
+                    }
+                    if (MisterWhisper.this.modelLoading == cancelled) {
+                        MisterWhisper.this.modelLoading = null;
+                        MisterWhisper.this.modelLoader = null;
+                    }
+                }
+                if (!cancelled.get() && loaded != null && MisterWhisper.this.inbox != null) {
+                    // The files in progress hold the previous model, transcribe them with the new one
+                    stopInboxWatcher();
+                    startInboxWatcher();
+                }
+                if (toRelease != null) {
+                    toRelease.release();
+                }
+                if (!cancelled.get() && loaded != null) {
+                    setModelPref(f.getName());
+                }
+                modelLoadingChanged();
+            }
+        });
+    }
+
+    private void cancelModelLoading() {
+        synchronized (this) {
+            if (this.modelLoading == null) {
+                return;
+            }
+            this.modelLoading.set(true);
+            this.modelLoading = null;
+            if (this.modelLoader != null) {
+                this.modelLoader.cancel();
+                this.modelLoader = null;
+            }
+        }
+        modelLoadingChanged();
+    }
+
+    public synchronized boolean isLoadingModel() {
+        return this.modelLoading != null;
+    }
+
+    private void modelLoadingChanged() {
+        updateIcon();
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                final boolean loading = isLoadingModel();
+                if (loading) {
+                    MisterWhisper.this.modelLoadingTimer.start();
+                } else {
+                    MisterWhisper.this.modelLoadingTimer.stop();
+                }
+                for (MenuItem item : MisterWhisper.this.cancelModelLoadingItems) {
+                    item.setEnabled(loading);
+                }
+                updateModelMenuItems();
+                updateToolTip();
+            }
+        });
+    }
+
+    private void updateModelMenuItems() {
+        final String current;
+        synchronized (this) {
+            current = this.modelLoading != null ? this.modelLoadingName : this.model;
+        }
+        for (CheckboxMenuItem item : this.modelMenuItems) {
+            item.setState(item.getActionCommand().equals(current));
+        }
+    }
+
     protected void updateToolTip() {
         String tooltip = "Press ";
         if (MisterWhisper.this.shiftHotkey) {
@@ -605,6 +840,18 @@ public class MisterWhisper implements NativeKeyListener {
             tooltip += "Ctrl + ";
         }
         tooltip += MisterWhisper.this.hotkey + " to record";
+        if (isWarmingUp()) {
+            tooltip = "Warming up the model, recordings are queued";
+        }
+        synchronized (this) {
+            if (this.modelLoading != null) {
+                tooltip = "Loading " + this.modelLoadingName;
+                if (this.modelLoader != null) {
+                    tooltip += " " + Math.round(this.modelLoader.getProgress() * 100) + "%";
+                }
+                tooltip += " (" + (System.currentTimeMillis() - this.modelLoadingStartTime) / 1000 + "s)";
+            }
+        }
         if (this.trayIcon != null) {
             MisterWhisper.this.trayIcon.setToolTip(tooltip);
         }
@@ -782,6 +1029,7 @@ public class MisterWhisper implements NativeKeyListener {
         }
 
         setRecording(true);
+        prewarmRemote();
         try {
             String audioDevice = this.prefs.get("audio.device", "");
             String previsouAudipDevice = this.prefs.get("audio.device.previous", "");
@@ -791,6 +1039,7 @@ public class MisterWhisper implements NativeKeyListener {
 
                 @Override
                 public void run() {
+                    final long captureStartTime = System.nanoTime();
                     TargetDataLine targetDataLine;
                     try {
                         targetDataLine = getTargetDataLine(audioDevice);
@@ -812,7 +1061,9 @@ public class MisterWhisper implements NativeKeyListener {
                             System.out.println("Using audio device : " + audioDevice);
                         }
 
-                        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                        SegmentedAudioStore audio = new SegmentedAudioStore();
+                        StreamingTranscriber stream = null;
+                        RemoteEndpointPool.StreamingRequest upload = null;
                         try {
                             targetDataLine.open(MisterWhisper.this.audioFormat);
                             targetDataLine.start();
@@ -822,37 +1073,73 @@ public class MisterWhisper implements NativeKeyListener {
                             // 0.25s
                             byte[] data = new byte[8000];
                             boolean detectSilence = MisterWhisper.this.prefs.getBoolean("silence-detection", false);
-                            if (detectSilence) {
+                            if (MisterWhisper.this.remote == null && MisterWhisper.this.prefs.getBoolean("streaming", false)) {
+                                stream = new StreamingTranscriber(retainLocalWhisper());
+                                final StreamingTranscriber s = stream;
                                 while (isRecording()) {
                                     int numBytesRead = targetDataLine.read(data, 0, data.length);
                                     if (numBytesRead > 0) {
-                                        boolean silence = detectSilence(data, numBytesRead, 500);
-
-                                        if (silence) {
-                                            byte[] audioData = byteArrayOutputStream.toByteArray();
-                                            byteArrayOutputStream.reset();
+                                        s.append(data, numBytesRead);
+                                        if (s.needsUpdate()) {
                                             MisterWhisper.this.executorService.execute(new Runnable() {
 
                                                 @Override
                                                 public void run() {
                                                     try {
-                                                        transcribe(audioData, action, false);
+                                                        s.update();
+                                                        showPartialText(s.getCommittedText(), s.getTentativeText());
                                                     } catch (IOException e) {
                                                         e.printStackTrace();
                                                     }
                                                 }
                                             });
-                                        } else {
-                                            byteArrayOutputStream.write(data, 0, numBytesRead);
                                         }
-
+                                    }
+                                }
+                            } else if (detectSilence) {
+                                final SpeechSegmenter segmenter = new SpeechSegmenter(createVoiceActivityDetector(), new SpeechSegmenter.Listener() {
+
+                                    @Override
+                                    public void speechSegment(final SegmentedAudioStore segment) {
+                                        final LatencyTracker.Utterance utterance = new LatencyTracker.Utterance(System.nanoTime());
+                                        utterance.mark(LatencyTracker.Stage.AUDIO_FLUSHED);
+                                        final long ticket = MisterWhisper.this.sequencedOutput.newTicket();
+                                        MisterWhisper.this.transcriptionService.execute(new Runnable() {
+
+                                            @Override
+                                            public void run() {
+                                                transcribe(segment, action, false, ticket, utterance);
+                                            }
+                                        });
+                                    }
+                                });
+                                try {
+                                    while (isRecording()) {
+                                        int numBytesRead = targetDataLine.read(data, 0, data.length);
+                                        if (numBytesRead > 0) {
+                                            segmenter.write(data, numBytesRead);
+                                        }
+                                        prewarmRemote();
+                                    }
+                                } finally {
+                                    final SegmentedAudioStore last = segmenter.finish();
+                                    if (last != null) {
+                                        audio.close();
+                                        audio = last;
                                     }
                                 }
                             } else {
+                                if (MisterWhisper.this.remote != null && MisterWhisper.this.prefs.getBoolean("remote.streaming-upload", false)) {
+                                    // Upload while recording
+                                    upload = MisterWhisper.this.remote.startStreamingUpload(audio, 0.0, 0.01);
+                                }
                                 while (isRecording()) {
                                     int numBytesRead = targetDataLine.read(data, 0, data.length);
                                     if (numBytesRead > 0) {
-                                        byteArrayOutputStream.write(data, 0, numBytesRead);
+                                        audio.write(data, 0, numBytesRead);
+                                    }
+                                    if (upload == null) {
+                                        prewarmRemote();
                                     }
                                 }
                             }
@@ -873,27 +1160,52 @@ public class MisterWhisper implements NativeKeyListener {
                                 e.printStackTrace();
                             }
                         }
-                        final byte[] audioData = byteArrayOutputStream.toByteArray();
+                        final SegmentedAudioStore audioData = audio;
+                        final long stopTime = MisterWhisper.this.captureStopTime;
+                        final LatencyTracker.Utterance utterance = new LatencyTracker.Utterance(stopTime > captureStartTime ? stopTime : System.nanoTime());
+                        utterance.mark(LatencyTracker.Stage.AUDIO_FLUSHED);
                         setRecording(false);
 
-                        MisterWhisper.this.executorService.execute(new Runnable() {
+                        if (stream != null) {
+                            audioData.close();
+                            final StreamingTranscriber s = stream;
+                            final long ticket = MisterWhisper.this.sequencedOutput.newTicket();
+                            MisterWhisper.this.executorService.execute(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    String text = null;
+                                    utterance.mark(LatencyTracker.Stage.TRANSCRIPTION_STARTED);
+                                    setTranscribing(true);
+                                    try {
+                                        text = s.finish();
+                                        utterance.mark(LatencyTracker.Stage.TRANSCRIBED);
+                                    } catch (IOException e) {
+                                        e.printStackTrace();
+                                    } finally {
+                                        setTranscribing(false);
+                                        updateToolTip();
+                                        completeOutput(ticket, text, action, true, utterance);
+                                    }
+                                }
+                            });
+                        } else {
+                            final long ticket = MisterWhisper.this.sequencedOutput.newTicket();
+                            final RemoteEndpointPool.StreamingRequest streamingUpload = upload;
+                            MisterWhisper.this.transcriptionService.execute(new Runnable() {
 
-                            @Override
-                            public void run() {
-                                try {
-                                    transcribe(audioData, action, true);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
+                                @Override
+                                public void run() {
+                                    transcribe(audioData, action, true, ticket, utterance, streamingUpload);
                                 }
-                            }
-                        });
+                            });
+                        }
 
                     } catch (Exception e) {
                         e.printStackTrace();
 
                     }
                     setRecording(false);
-                    setTranscribing(false);
 
                 }
             });
@@ -905,48 +1217,91 @@ public class MisterWhisper implements NativeKeyListener {
         }
     }
 
-    public void transcribe(byte[] audioData, final Action action, boolean isEndOfCapture) throws IOException {
-        if (detectSilence(audioData, audioData.length, 100)) {
+    /**
+     * Transcribe the audio and process the result, the audio store is closed after the
+     * transcription. Can be called from several threads, the results are processed in the order of
+     * the tickets.
+     *
+     * @param utterance marked at each stage, recorded once the text is output
+     */
+    public void transcribe(SegmentedAudioStore audioData, final Action action, final boolean isEndOfCapture, long ticket, LatencyTracker.Utterance utterance) {
+        transcribe(audioData, action, isEndOfCapture, ticket, utterance, null);
+    }
+
+    /**
+     * Same as transcribe(SegmentedAudioStore, Action, boolean, long, Utterance), with the upload of
+     * the audio started during the capture (can be null)
+     */
+    public void transcribe(SegmentedAudioStore audioData, final Action action, final boolean isEndOfCapture, long ticket, LatencyTracker.Utterance utterance,
+            RemoteEndpointPool.StreamingRequest upload) {
+        String str = null;
+        utterance.mark(LatencyTracker.Stage.TRANSCRIPTION_STARTED);
+        try {
+            str = transcribeToText(audioData, utterance, upload);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            audioData.close();
+            completeOutput(ticket, str, action, isEndOfCapture, utterance);
+        }
+    }
+
+    private void completeOutput(long ticket, final String str, final Action action, final boolean isEndOfCapture, final LatencyTracker.Utterance utterance) {
+        if (str == null) {
+            this.sequencedOutput.complete(ticket, null);
+        } else {
+            this.sequencedOutput.complete(ticket, new Runnable() {
+
+                @Override
+                public void run() {
+                    output(str, action, isEndOfCapture, utterance);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the text, null if there is nothing to output
+     */
+    private String transcribeToText(SegmentedAudioStore audioData, LatencyTracker.Utterance utterance, RemoteEndpointPool.StreamingRequest upload) throws IOException {
+        if (!SpeechSegmenter.containsSpeech(audioData, createVoiceActivityDetector())) {
             if (this.debug) {
                 System.out.println("Silence detected");
             }
-            return;
-        }
-        if (audioData.length < MIN_AUDIO_DATA_LENGTH) {
-            byte[] n = new byte[MIN_AUDIO_DATA_LENGTH];
-            System.arraycopy(audioData, 0, n, 0, audioData.length);
-            audioData = n;
+            if (upload != null) {
+                upload.cancel();
+            }
+            return null;
         }
 
         setTranscribing(true);
-
-        String str;
-        if (MisterWhisper.this.remoteUrl == null) {
-            str = this.w.transcribeRaw(audioData);
-        } else {
-            // Save the recorded audio to a WAV file for remote
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-            String fileName = timestamp + ".wav";
-            final File out = File.createTempFile("rec_", fileName);
-            try (AudioInputStream audioInputStream = new AudioInputStream(new ByteArrayInputStream(audioData), this.audioFormat, audioData.length / this.audioFormat.getFrameSize())) {
-                AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, out);
-                str = processRemote(out, action);
+        try {
+            if (MisterWhisper.this.remote == null) {
+                final LocalWhisperCPP local = retainLocalWhisper();
+                try {
+                    return local.transcribe(audioData, MIN_AUDIO_DATA_LENGTH / 2, utterance);
+                } finally {
+                    local.release();
+                }
+            }
+            if (this.debug) {
+                saveDebugRecord(audioData);
+            }
+            try {
+                // The WAV file is generated while sending the request
+                utterance.mark(LatencyTracker.Stage.CONVERTED);
+                return processRemote(audioData, utterance, upload);
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(null, "Error processing record : " + e.getMessage());
                 e.printStackTrace();
-                setTranscribing(false);
-                return;
-            } finally {
-                if (this.debug) {
-                    System.out.println("Audio record stored in : " + out.getAbsolutePath());
-                } else {
-                    boolean deleted = out.delete();
-                    if (!deleted) {
-                        Logger.getGlobal().warning("cannot delete " + out.getAbsolutePath());
-                    }
-                }
+                return null;
             }
+        } finally {
+            setTranscribing(false);
         }
+    }
+
+    private void output(String str, final Action action, boolean isEndOfCapture, final LatencyTracker.Utterance utterance) {
         str = str.replace('\n', ' ');
         str = str.replace('\r', ' ');
         str = str.replace('\t', ' ');
@@ -1032,22 +1387,126 @@ public class MisterWhisper implements NativeKeyListener {
                     public void run() {
                         MisterWhisper.this.history.add(finalStr);
                         fireHistoryChanged();
+                        utterance.mark(LatencyTracker.Stage.OUTPUT_DONE);
+                        MisterWhisper.this.latency.complete(utterance);
+                        final String summary = MisterWhisper.this.latency.getSummary();
+                        System.out.println(summary);
+                        MisterWhisper.this.label.setToolTipText(summary);
                     }
                 });
             }
         });
+    }
 
-        setTranscribing(false);
+    /**
+     * Display the text transcribed so far during a live transcription.
+     */
+    private void showPartialText(String committed, String tentative) {
+        String text = (committed + " " + tentative).trim();
+        if (text.length() > 60) {
+            text = "..." + text.substring(text.length() - 60);
+        }
+        final String finalText = text;
+        SwingUtilities.invokeLater(new Runnable() {
 
+            @Override
+            public void run() {
+                if (MisterWhisper.this.window != null && isRecording()) {
+                    MisterWhisper.this.label.setText(finalText);
+                }
+                if (MisterWhisper.this.trayIcon != null) {
+                    MisterWhisper.this.trayIcon.setToolTip(finalText);
+                }
+            }
+        });
     }
 
+    /**
+     * @param b true when a transcription starts, false when it ends
+     */
     protected synchronized void setTranscribing(boolean b) {
-        this.transcribing = b;
+        if (b) {
+            this.transcribing++;
+        } else {
+            this.transcribing--;
+        }
         updateIcon();
     }
 
     public synchronized boolean isTranscribing() {
-        return this.transcribing;
+        return this.transcribing > 0;
+    }
+
+    public synchronized boolean isWarmingUp() {
+        return this.warmingUp;
+    }
+
+    protected synchronized void setWarmingUp(boolean b) {
+        this.warmingUp = b;
+        updateIcon();
+    }
+
+    /**
+     * Watch the folders of the preference inbox.dirs (separated by the path separator), their audio
+     * files are transcribed when the dictation does not need the model
+     */
+    private void startInboxWatcher() {
+        final String dirs = this.prefs.get("inbox.dirs", "").trim();
+        if (dirs.isEmpty()) {
+            return;
+        }
+        final List<File> files = new ArrayList<>();
+        for (String dir : dirs.split(File.pathSeparator)) {
+            if (!dir.trim().isEmpty()) {
+                files.add(new File(dir.trim()));
+            }
+        }
+        final String output = this.prefs.get("inbox.output", "").trim();
+        try {
+            final SegmentWriter.Format format = SegmentWriter.Format.valueOf(this.prefs.get("inbox.format", "txt").toUpperCase(Locale.ROOT));
+            this.inbox = new InboxWatcher(this::retainLocalWhisper, files, output.isEmpty() ? null : new File(output), format, this.prefs.getInt("inbox.workers", 1),
+                    this.prefs.getInt("inbox.settle-seconds", 5) * 1000L);
+            this.inbox.start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Cannot watch " + dirs + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the watcher of startInboxWatcher(), its files in progress are abandoned
+     */
+    private synchronized void stopInboxWatcher() {
+        if (this.inbox == null) {
+            return;
+        }
+        try {
+            this.inbox.stop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.inbox = null;
+    }
+
+    /**
+     * Warm up the local model in background, the tray shows the warming state until it is done.
+     */
+    private void warmUp() {
+        setWarmingUp(true);
+        updateToolTip();
+        this.w.warmUp(new Runnable() {
+
+            @Override
+            public void run() {
+                setWarmingUp(false);
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        updateToolTip();
+                    }
+                });
+            }
+        });
     }
 
     public synchronized boolean isRecording() {
@@ -1073,6 +1532,10 @@ public class MisterWhisper implements NativeKeyListener {
 
                         if (isTranscribing()) {
                             MisterWhisper.this.label.setText("Transcribing");
+                        } else if (isLoadingModel()) {
+                            MisterWhisper.this.label.setText("Loading model");
+                        } else if (isWarmingUp()) {
+                            MisterWhisper.this.label.setText("Warming up");
                         } else {
                             MisterWhisper.this.label.setText("Idle");
                         }
@@ -1081,7 +1544,7 @@ public class MisterWhisper implements NativeKeyListener {
                     if (isRecording()) {
                         MisterWhisper.this.window.setIconImage(MisterWhisper.this.imageRecording);
                     } else {
-                        if (isTranscribing()) {
+                        if (isTranscribing() || isWarmingUp()) {
                             MisterWhisper.this.window.setIconImage(MisterWhisper.this.imageTranscribing);
                         } else {
                             MisterWhisper.this.window.setIconImage(MisterWhisper.this.imageInactive);
@@ -1094,7 +1557,7 @@ public class MisterWhisper implements NativeKeyListener {
                     if (isRecording()) {
                         MisterWhisper.this.trayIcon.setImage(MisterWhisper.this.imageRecording);
                     } else {
-                        if (isTranscribing()) {
+                        if (isTranscribing() || isWarmingUp()) {
                             MisterWhisper.this.trayIcon.setImage(MisterWhisper.this.imageTranscribing);
                         } else {
                             MisterWhisper.this.trayIcon.setImage(MisterWhisper.this.imageInactive);
@@ -1108,19 +1571,63 @@ public class MisterWhisper implements NativeKeyListener {
 
     }
 
-    private String processRemote(File out, Action action) throws IOException {
+    /**
+     * Save the recorded audio to a WAV file, to check what is sent to the remote server
+     */
+    private void saveDebugRecord(SegmentedAudioStore audioData) {
+        final long length = Math.max(audioData.size(), MIN_AUDIO_DATA_LENGTH);
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        String fileName = timestamp + ".wav";
+        try (AudioInputStream audioInputStream = new AudioInputStream(audioData.newInputStream(length), this.audioFormat, length / this.audioFormat.getFrameSize())) {
+            final File out = File.createTempFile("rec_", fileName);
+            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, out);
+            System.out.println("Audio record stored in : " + out.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String processRemote(SegmentedAudioStore audioData, LatencyTracker.Utterance utterance, RemoteEndpointPool.StreamingRequest upload) throws IOException {
         long t1 = System.currentTimeMillis();
-        String string = new RemoteWhisperCPP(this.remoteUrl).transcribe(out, 0.0, 0.01);
+        final String string;
+        if (upload != null) {
+            // Only the end of the recording remains to send
+            string = upload.finish(MIN_AUDIO_DATA_LENGTH, utterance);
+        } else {
+            string = this.remote.transcribe(audioData, MIN_AUDIO_DATA_LENGTH, 0.0, 0.01, utterance);
+        }
         long t2 = System.currentTimeMillis();
         System.out.println("Response from remote whisper.cpp (" + (t2 - t1) + " ms): " + string);
         return string.trim();
 
     }
 
+    /**
+     * Open (or keep open) a connection to the remote server in background, so it is ready when the
+     * recording stops. Called when recording starts and while recording.
+     */
+    private void prewarmRemote() {
+        if (this.remote == null || !this.remotePrewarming.compareAndSet(false, true)) {
+            return;
+        }
+        this.remotePrewarmService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    MisterWhisper.this.remote.prewarm();
+                } finally {
+                    MisterWhisper.this.remotePrewarming.set(false);
+                }
+            }
+        });
+    }
+
     private void stopRecording() {
         if (!this.isRecording()) {
             return;
         }
+        this.captureStopTime = System.nanoTime();
         setRecording(false);
     }
 
@@ -1161,7 +1668,24 @@ public class MisterWhisper implements NativeKeyListener {
         return this.history;
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // Headless modes, no hotkey nor tray icon
+        if (Arrays.asList(args).contains("--server")) {
+            WhisperServer.main(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--batch")) {
+            BatchTranscriber.main(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--long-form")) {
+            LongFormTranscriber.main(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--watch")) {
+            InboxWatcher.main(args);
+            return;
+        }
 
         SwingUtilities.invokeLater(() -> {
             try {
@@ -1171,14 +1695,19 @@ public class MisterWhisper implements NativeKeyListener {
             }
             try {
                 Boolean debug = false;
-                String url = null;
+                final List<String> urls = new ArrayList<>();
                 boolean forceOpenWindow = false;
                 for (int i = 0; i < args.length; i++) {
                     final String arg = args[i];
                     if (!arg.startsWith("-D")) {
 
                         if (arg.startsWith("http")) {
-                            url = arg;
+                            // Several servers can be given, as several parameters or separated by commas
+                            for (String url : arg.split(",")) {
+                                if (!url.trim().isEmpty()) {
+                                    urls.add(url.trim());
+                                }
+                            }
                         } else if (arg.equals("--window")) {
                             forceOpenWindow = true;
                         } else if (arg.equals("--debug")) {
@@ -1186,7 +1715,7 @@ public class MisterWhisper implements NativeKeyListener {
                         }
                     }
                 }
-                final MisterWhisper r = new MisterWhisper(url);
+                final MisterWhisper r = new MisterWhisper(urls);
                 r.debug = debug;
                 boolean openWindow = r.prefs.getBoolean("open-window", true);
                 if (forceOpenWindow) {
@@ -1278,6 +1807,13 @@ public class MisterWhisper implements NativeKeyListener {
 
     }
 
+    public void showLatencyReport() {
+        LatencyFrame f = new LatencyFrame(this.latency);
+        f.setSize(640, 360);
+        f.setLocationRelativeTo(null);
+        f.setVisible(true);
+    }
+
     public void showHistory() {
         HistoryFrame f = new HistoryFrame(MisterWhisper.this);
         f.setSize(600, 800);
@@ -1285,14 +1821,10 @@ public class MisterWhisper implements NativeKeyListener {
         f.setVisible(true);
     }
 
-    private static boolean detectSilence(byte[] buffer, int bytesRead, int threshold) {
-        int maxAmplitude = 0;
-        // 16-bit audio = 2 bytes per sample
-        for (int i = 0; i < bytesRead; i += 2) {
-            int sample = (buffer[i + 1] << 8) | (buffer[i] & 0xFF);
-            maxAmplitude = Math.max(maxAmplitude, Math.abs(sample));
-        }
-
-        return maxAmplitude < threshold;
+    /**
+     * @return a new voice activity detector, used to split the recordings and to skip silent ones
+     */
+    protected VoiceActivityDetector createVoiceActivityDetector() {
+        return new EnergyVoiceActivityDetector();
     }
 }
@@ -0,0 +1,228 @@
+package whisper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Conversion of 16 bits little endian PCM to float samples, with the signal statistics (peak, RMS,
+ * zero crossings) computed in the same pass.
+ *
+ * The BULK implementation decodes the samples with little endian ShortBuffer views and bulk copies,
+ * leaving a simple loop over short[] and float[] that the JIT can unroll and vectorize. The SCALAR
+ * implementation decodes the bytes one by one. The implementation is selected at runtime with
+ * -Dmister-whisper.pcm=scalar|bulk (bulk by default).
+ */
+public abstract class PcmConverter {
+    private static final float SCALE = 1.0f / 32768.0f;
+    // Samples decoded at once by the bulk implementation
+    private static final int CHUNK = 4096;
+
+    /**
+     * Statistics of the samples given to a converter, accumulated until reset().
+     */
+    public static final class Stats {
+        private long count;
+        private int peak;
+        private long sumSquares;
+        private long zeroCrossings;
+        private int previous;
+
+        public void reset() {
+            this.count = 0;
+            this.peak = 0;
+            this.sumSquares = 0;
+            this.zeroCrossings = 0;
+            this.previous = 0;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return the maximum absolute value of the samples, from 0 to 32768
+         */
+        public int getPeak() {
+            return this.peak;
+        }
+
+        /**
+         * @return the mean of the squared samples
+         */
+        public double getMeanSquare() {
+            return this.count == 0 ? 0 : (double) this.sumSquares / this.count;
+        }
+
+        public double getRms() {
+            return Math.sqrt(getMeanSquare());
+        }
+
+        /**
+         * @return the number of sign changes divided by the number of samples
+         */
+        public double getZeroCrossingRate() {
+            return this.count == 0 ? 0 : (double) this.zeroCrossings / this.count;
+        }
+
+        void add(short[] samples, int offset, int length) {
+            int p = this.peak;
+            long sum = this.sumSquares;
+            long crossings = this.zeroCrossings;
+            int previous = this.previous;
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                final int s = samples[i];
+                p = Math.max(p, Math.abs(s));
+                sum += s * s;
+                crossings += (s ^ previous) >>> 31;
+                previous = s;
+            }
+            if (this.count == 0 && length > 0 && samples[offset] < 0) {
+                // No crossing before the first sample
+                crossings--;
+            }
+            this.peak = p;
+            this.sumSquares = sum;
+            this.zeroCrossings = crossings;
+            this.previous = previous;
+            this.count += length;
+        }
+
+        void add(int s) {
+            this.peak = Math.max(this.peak, Math.abs(s));
+            this.sumSquares += s * s;
+            if (this.count > 0 && (s < 0) != (this.previous < 0)) {
+                this.zeroCrossings++;
+            }
+            this.previous = s;
+            this.count++;
+        }
+    }
+
+    public static final PcmConverter SCALAR = new ScalarPcmConverter();
+    public static final PcmConverter BULK = new BulkPcmConverter();
+
+    private static final PcmConverter INSTANCE = "scalar".equalsIgnoreCase(System.getProperty("mister-whisper.pcm")) ? SCALAR : BULK;
+
+    public static PcmConverter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Convert samples from a byte array to a float array.
+     *
+     * @param count number of samples
+     * @param stats updated with the converted samples (can be null)
+     */
+    public abstract void toFloats(byte[] src, int offset, int count, float[] dst, int dstOffset, Stats stats);
+
+    /**
+     * Convert samples from the position of a buffer (little endian, whatever its byte order) to the
+     * position of a float buffer. Both positions are advanced.
+     *
+     * @param count number of samples
+     * @param stats updated with the converted samples (can be null)
+     */
+    public abstract void toFloats(ByteBuffer src, int count, FloatBuffer dst, Stats stats);
+
+    /**
+     * Only compute the statistics of samples.
+     *
+     * @param count number of samples
+     */
+    public abstract void analyze(byte[] src, int offset, int count, Stats stats);
+
+    static final class ScalarPcmConverter extends PcmConverter {
+
+        @Override
+        public void toFloats(byte[] src, int offset, int count, float[] dst, int dstOffset, Stats stats) {
+            for (int i = 0; i < count; i++) {
+                final int j = offset + 2 * i;
+                final short sample = (short) (((src[j + 1] & 0xFF) << 8) | (src[j] & 0xFF));
+                dst[dstOffset + i] = sample * SCALE;
+                if (stats != null) {
+                    stats.add(sample);
+                }
+            }
+        }
+
+        @Override
+        public void toFloats(ByteBuffer src, int count, FloatBuffer dst, Stats stats) {
+            final ByteBuffer b = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < count; i++) {
+                final short sample = b.getShort();
+                dst.put(sample * SCALE);
+                if (stats != null) {
+                    stats.add(sample);
+                }
+            }
+            src.position(b.position());
+        }
+
+        @Override
+        public void analyze(byte[] src, int offset, int count, Stats stats) {
+            for (int i = 0; i < count; i++) {
+                final int j = offset + 2 * i;
+                stats.add((short) (((src[j + 1] & 0xFF) << 8) | (src[j] & 0xFF)));
+            }
+        }
+    }
+
+    static final class BulkPcmConverter extends PcmConverter {
+        private static final ThreadLocal<short[]> SHORTS = ThreadLocal.withInitial(() -> new short[CHUNK]);
+        private static final ThreadLocal<float[]> FLOATS = ThreadLocal.withInitial(() -> new float[CHUNK]);
+
+        @Override
+        public void toFloats(byte[] src, int offset, int count, float[] dst, int dstOffset, Stats stats) {
+            final ShortBuffer in = ByteBuffer.wrap(src, offset, count * 2).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            final short[] shorts = SHORTS.get();
+            for (int done = 0; done < count;) {
+                final int n = Math.min(CHUNK, count - done);
+                in.get(shorts, 0, n);
+                scale(shorts, n, dst, dstOffset + done);
+                if (stats != null) {
+                    stats.add(shorts, 0, n);
+                }
+                done += n;
+            }
+        }
+
+        @Override
+        public void toFloats(ByteBuffer src, int count, FloatBuffer dst, Stats stats) {
+            final ShortBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            final short[] shorts = SHORTS.get();
+            final float[] floats = FLOATS.get();
+            for (int done = 0; done < count;) {
+                final int n = Math.min(CHUNK, count - done);
+                in.get(shorts, 0, n);
+                scale(shorts, n, floats, 0);
+                dst.put(floats, 0, n);
+                if (stats != null) {
+                    stats.add(shorts, 0, n);
+                }
+                done += n;
+            }
+            src.position(src.position() + 2 * count);
+        }
+
+        @Override
+        public void analyze(byte[] src, int offset, int count, Stats stats) {
+            final ShortBuffer in = ByteBuffer.wrap(src, offset, count * 2).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            final short[] shorts = SHORTS.get();
+            for (int done = 0; done < count;) {
+                final int n = Math.min(CHUNK, count - done);
+                in.get(shorts, 0, n);
+                stats.add(shorts, 0, n);
+                done += n;
+            }
+        }
+
+        private static void scale(short[] src, int length, float[] dst, int dstOffset) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = src[i] * SCALE;
+            }
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package whisper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Routing of the requests to several whisper.cpp servers.
+ *
+ * Each request goes to the healthy endpoint with the lowest expected latency : the moving average
+ * of its recent response times, multiplied by the number of requests it is already processing plus
+ * one. Endpoints without measure yet are expected as fast as the best measured one, so they are
+ * tried early but still spread by their requests in progress. If a request fails, it is sent to
+ * the next best endpoint. An endpoint failing several times in a row is ejected, and probed in
+ * background until it answers again.
+ *
+ * An endpoint answering 503 (saturated) is not failing : it is tried after the others for the time
+ * given by its Retry-After header, and the request goes to the next endpoint. A 4xx answer or an
+ * error in the response is an error of the request, not of the endpoint.
+ */
+public class RemoteEndpointPool {
+    // Weight of the last response time in the moving average
+    private static final double LATENCY_WEIGHT = 0.3;
+    // Consecutive failures before ejection
+    private static final int MAX_ERRORS = 2;
+    private static final long PROBE_INTERVAL = 5000;
+    // Hedging delay : 95th percentile of the last response times, not below MIN_HEDGE_DELAY
+    private static final int LATENCY_WINDOW = 200;
+    private static final int MIN_LATENCY_SAMPLES = 10;
+    private static final long INITIAL_HEDGE_DELAY = 3000;
+    private static final long MIN_HEDGE_DELAY = 200;
+
+    static final class Endpoint {
+        private final RemoteWhisperCPP client;
+        // Moving average of the response times in ms, 0 if never measured
+        private double latency;
+        private int inFlight;
+        private int errors;
+        private boolean ejected;
+        // Saturated until this time (Retry-After of a 503)
+        private long busyUntil;
+        private long requests;
+        private long failures;
+
+        Endpoint(RemoteWhisperCPP client) {
+            this.client = client;
+        }
+
+        /**
+         * @param prior latency used if this endpoint was never measured
+         */
+        synchronized double getScore(double prior) {
+            return (this.latency == 0 ? prior : this.latency) * (this.inFlight + 1);
+        }
+
+        synchronized double getLatency() {
+            return this.latency;
+        }
+
+        synchronized boolean isEjected() {
+            return this.ejected;
+        }
+
+        synchronized boolean isBusy() {
+            return System.currentTimeMillis() < this.busyUntil;
+        }
+
+        synchronized void started() {
+            this.inFlight++;
+            this.requests++;
+        }
+
+        synchronized void succeeded(long duration) {
+            this.inFlight--;
+            this.latency = this.latency == 0 ? duration : LATENCY_WEIGHT * duration + (1 - LATENCY_WEIGHT) * this.latency;
+            this.errors = 0;
+        }
+
+        synchronized void failed(IOException cause) {
+            this.inFlight--;
+            if (cause instanceof RemoteWhisperCPP.ServerBusyException) {
+                // Answering, but saturated
+                this.errors = 0;
+                this.busyUntil = System.currentTimeMillis() + ((RemoteWhisperCPP.ServerBusyException) cause).getRetryAfter();
+                return;
+            }
+            if (cause instanceof RemoteWhisperCPP.ServerException) {
+                // Error of the request, the endpoint answered
+                this.errors = 0;
+                return;
+            }
+            this.failures++;
+            this.errors++;
+            if (this.errors >= MAX_ERRORS && !this.ejected) {
+                System.out.println("Remote server " + this.client.getURL() + " ejected after " + this.errors + " errors");
+                this.ejected = true;
+            }
+        }
+
+        /**
+         * @param duration time until the cancel, a lower bound of the response time
+         */
+        synchronized void cancelled(long duration) {
+            this.inFlight--;
+            if (duration > this.latency) {
+                // Slower than expected, for example when the hedge answered first
+                this.latency = this.latency == 0 ? duration : LATENCY_WEIGHT * duration + (1 - LATENCY_WEIGHT) * this.latency;
+            }
+        }
+
+        synchronized void reinstate() {
+            System.out.println("Remote server " + this.client.getURL() + " is back");
+            this.ejected = false;
+            this.errors = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final String state = this.ejected ? "ejected" : isBusy() ? "busy" : "healthy";
+            return String.format("%s : %s, latency %.0f ms, %d in flight, %d requests, %d failures", this.client.getURL(), state, this.latency, this.inFlight, this.requests,
+                    this.failures);
+        }
+    }
+
+    /**
+     * A request that can be sent to any endpoint
+     */
+    interface Request<T> {
+        T send(RemoteWhisperCPP client, RemoteWhisperCPP.Call call) throws IOException;
+    }
+
+    /**
+     * A request in progress, on one endpoint after the other
+     */
+    static final class Attempt {
+        private final RemoteWhisperCPP.Call call = new RemoteWhisperCPP.Call();
+        private volatile Endpoint endpoint;
+
+        void cancel() {
+            this.call.cancel();
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final ScheduledExecutorService probeService;
+    // Hedging
+    private volatile boolean hedging;
+    private volatile LocalWhisperCPP localHedge;
+    // A local transcription can't be cancelled, only one runs at a time
+    private final AtomicBoolean localHedgeRunning = new AtomicBoolean();
+    private final ExecutorService hedgeService;
+    // Rolling window of the response times in ms, for the hedging delay
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount;
+    private final AtomicInteger hedgeCount = new AtomicInteger();
+    private final AtomicInteger hedgeWins = new AtomicInteger();
+
+    public RemoteEndpointPool(List<String> urls) {
+        this(urls, 5000, 120000);
+    }
+
+    /**
+     * @param connectTimeout connection timeout in ms
+     * @param readTimeout timeout in ms while waiting for a response
+     */
+    public RemoteEndpointPool(List<String> urls, int connectTimeout, int readTimeout) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("no url");
+        }
+        for (String url : urls) {
+            this.endpoints.add(new Endpoint(new RemoteWhisperCPP(url, connectTimeout, readTimeout)));
+        }
+        this.probeService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "remote-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        this.probeService.scheduleWithFixedDelay(this::probe, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+        this.hedgeService = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "remote-request");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getEndpointCount() {
+        return this.endpoints.size();
+    }
+
+    /**
+     * Enable hedged requests : if the answer of a request takes longer than the 95th percentile of
+     * the recent response times, the same audio is sent to another endpoint (or transcribed by the
+     * local hedge if there is only one endpoint). The first answer is used, the other request is
+     * cancelled.
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * @param local model transcribing the audio if the single endpoint is slow to answer (can be
+     *        null). The local transcription can't be interrupted, its late result is ignored, and
+     *        the requests are not hedged on the local model while it runs.
+     */
+    public void setLocalHedge(LocalWhisperCPP local) {
+        this.localHedge = local;
+    }
+
+    /**
+     * Set the format of the uploaded recordings, for all the endpoints
+     */
+    public void setUploadFormat(RemoteWhisperCPP.UploadFormat format) {
+        for (Endpoint e : this.endpoints) {
+            e.client.setUploadFormat(format);
+        }
+    }
+
+    /**
+     * @return the endpoints, best first, then the busy ones, the ejected ones at the end
+     */
+    List<Endpoint> getEndpoints() {
+        final List<Endpoint> result = new ArrayList<>(this.endpoints);
+        // Scores are read once, they change while sorting
+        // Lowest measured latency, 1 if none : the endpoints are ordered by requests in progress
+        double prior = Double.MAX_VALUE;
+        for (Endpoint e : result) {
+            final double latency = e.getLatency();
+            if (latency > 0) {
+                prior = Math.min(prior, latency);
+            }
+        }
+        if (prior == Double.MAX_VALUE) {
+            prior = 1;
+        }
+        final Map<Endpoint, Double> scores = new HashMap<>();
+        // 0 healthy, 1 busy, 2 ejected
+        final Map<Endpoint, Integer> tiers = new HashMap<>();
+        for (Endpoint e : result) {
+            scores.put(e, e.getScore(prior));
+            tiers.put(e, e.isEjected() ? 2 : e.isBusy() ? 1 : 0);
+        }
+        Collections.sort(result, Comparator.comparing((Endpoint e) -> tiers.get(e)).thenComparing(scores::get));
+        return result;
+    }
+
+    /**
+     * Open a connection to the endpoint the next request will most likely use.
+     */
+    public void prewarm() {
+        getEndpoints().get(0).client.prewarm();
+    }
+
+    public String transcribe(final File file, final double temperature, final double temperatureInc, final LatencyTracker.Utterance utterance) throws IOException {
+        return send((client, call) -> client.transcribe(file, temperature, temperatureInc, utterance), new Attempt());
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio on the best endpoint, hedged if enabled.
+     *
+     * @param minLength minimum length in bytes of the audio, padded with silence
+     * @param utterance marked when the request is sent and the response received (can be null)
+     */
+    public String transcribe(final SegmentedAudioStore audio, final long minLength, final double temperature, final double temperatureInc, final LatencyTracker.Utterance utterance)
+            throws IOException {
+        final Request<String> request = (client, call) -> client.transcribe(audio, minLength, temperature, temperatureInc, utterance, call);
+        if (!this.hedging) {
+            return send(request, new Attempt());
+        }
+        return sendHedged(request, audio, minLength);
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio on the best endpoint, with the timestamps and the
+     * probabilities of the tokens. Not hedged.
+     *
+     * @param minLength minimum length in bytes of the audio, padded with silence
+     * @param utterance marked when the request is sent and the response received (can be null)
+     */
+    public List<WhisperSegment> transcribeWithTime(final SegmentedAudioStore audio, final long minLength, final double temperature, final double temperatureInc,
+            final LatencyTracker.Utterance utterance) throws IOException {
+        return send((client, call) -> client.transcribeWithTime(audio, minLength, temperature, temperatureInc, utterance, call), new Attempt());
+    }
+
+    /**
+     * Upload to the best endpoint while the recording is captured, with the usual request as
+     * fallback.
+     */
+    public final class StreamingRequest {
+        private final Endpoint endpoint;
+        private final RemoteWhisperCPP.StreamingUpload upload;
+        private final SegmentedAudioStore audio;
+        private final double temperature;
+        private final double temperatureInc;
+
+        StreamingRequest(Endpoint endpoint, RemoteWhisperCPP.StreamingUpload upload, SegmentedAudioStore audio, double temperature, double temperatureInc) {
+            this.endpoint = endpoint;
+            this.upload = upload;
+            this.audio = audio;
+            this.temperature = temperature;
+            this.temperatureInc = temperatureInc;
+        }
+
+        /**
+         * End the upload and wait for the transcription. If the streaming upload failed, the whole
+         * recording is sent again, to any endpoint.
+         *
+         * @param minLength minimum length in bytes of the audio, padded with silence
+         */
+        public String finish(long minLength, LatencyTracker.Utterance utterance) throws IOException {
+            this.endpoint.started();
+            final long t = System.currentTimeMillis();
+            try {
+                final String result = this.upload.finish(minLength, utterance);
+                final long duration = System.currentTimeMillis() - t;
+                this.endpoint.succeeded(duration);
+                addLatency(duration);
+                return result;
+            } catch (IOException e) {
+                this.endpoint.failed(e);
+                System.out.println("Streaming upload to " + this.endpoint.client.getURL() + " failed (" + e.getMessage() + "), sending the whole recording");
+                return transcribe(this.audio, minLength, this.temperature, this.temperatureInc, utterance);
+            }
+        }
+
+        public void cancel() {
+            this.upload.cancel();
+        }
+    }
+
+    /**
+     * Start uploading a recording to the best endpoint while it is captured.
+     *
+     * @return null if not possible, the recording must be sent with transcribe()
+     */
+    public StreamingRequest startStreamingUpload(SegmentedAudioStore audio, double temperature, double temperatureInc) {
+        final Endpoint e = getEndpoints().get(0);
+        if (e.isEjected() || e.isBusy()) {
+            return null;
+        }
+        final RemoteWhisperCPP.StreamingUpload upload = e.client.startStreamingUpload(audio, temperature, temperatureInc);
+        if (upload == null) {
+            return null;
+        }
+        return new StreamingRequest(e, upload, audio, temperature, temperatureInc);
+    }
+
+    private <T> T send(Request<T> request, Attempt attempt) throws IOException {
+        IOException error = null;
+        // Even the ejected endpoints are tried if all the others fail
+        for (Endpoint e : getEndpoints()) {
+            if (attempt.call.isCancelled()) {
+                throw new IOException("cancelled");
+            }
+            try {
+                return send(e, request, attempt);
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        if (this.endpoints.size() == 1) {
+            throw error;
+        }
+        throw new IOException("No remote server available, last error : " + error.getMessage(), error);
+    }
+
+    private <T> T send(Endpoint e, Request<T> request, Attempt attempt) throws IOException {
+        attempt.endpoint = e;
+        e.started();
+        final long t = System.currentTimeMillis();
+        try {
+            final T result = request.send(e.client, attempt.call);
+            final long duration = System.currentTimeMillis() - t;
+            e.succeeded(duration);
+            addLatency(duration);
+            return result;
+        } catch (IOException ex) {
+            if (attempt.call.isCancelled()) {
+                // Not a failure of the endpoint
+                e.cancelled(System.currentTimeMillis() - t);
+            } else {
+                e.failed(ex);
+                System.out.println("Request to " + e.client.getURL() + " failed (" + ex.getMessage() + ")");
+            }
+            throw ex;
+        }
+    }
+
+    private String sendHedged(final Request<String> request, final SegmentedAudioStore audio, final long minLength) throws IOException {
+        final CompletionService<String> completion = new ExecutorCompletionService<>(this.hedgeService);
+        final Attempt primary = new Attempt();
+        final Future<String> primaryFuture = completion.submit(() -> send(request, primary));
+        final long delay = getHedgeDelay();
+        try {
+            Future<String> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done != null) {
+                return getResult(done);
+            }
+            // No answer yet, send the audio to another endpoint, or to the local model
+            final Attempt hedge = new Attempt();
+            final Endpoint other = getHedgeEndpoint(primary.endpoint);
+            final LocalWhisperCPP local = this.localHedge;
+            if (other != null) {
+                System.out.println("No answer after " + delay + " ms, hedging on " + other.client.getURL());
+                completion.submit(() -> send(other, request, hedge));
+            } else if (local != null && this.localHedgeRunning.compareAndSet(false, true)) {
+                System.out.println("No answer after " + delay + " ms, hedging on the local model");
+                completion.submit(() -> {
+                    try {
+                        return local.transcribe(audio, (int) (minLength / 2));
+                    } finally {
+                        this.localHedgeRunning.set(false);
+                    }
+                });
+            } else {
+                return getResult(primaryFuture);
+            }
+            this.hedgeCount.incrementAndGet();
+            // First successful answer
+            IOException error = null;
+            for (int i = 0; i < 2; i++) {
+                done = completion.take();
+                try {
+                    final String result = getResult(done);
+                    if (done == primaryFuture) {
+                        hedge.cancel();
+                    } else {
+                        this.hedgeWins.incrementAndGet();
+                        primary.cancel();
+                    }
+                    return result;
+                } catch (IOException e) {
+                    if (error == null || done == primaryFuture) {
+                        error = e;
+                    }
+                }
+            }
+            throw error;
+        } catch (InterruptedException e) {
+            primary.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    private static String getResult(Future<String> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the best healthy endpoint, not busy, other than the given one, null if none
+     */
+    private Endpoint getHedgeEndpoint(Endpoint used) {
+        for (Endpoint e : getEndpoints()) {
+            if (e != used && !e.isEjected() && !e.isBusy()) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void addLatency(long duration) {
+        this.latencies[this.latencyCount % LATENCY_WINDOW] = duration;
+        this.latencyCount++;
+    }
+
+    /**
+     * @return the time to wait for an answer before hedging, in ms
+     */
+    synchronized long getHedgeDelay() {
+        final int n = Math.min(this.latencyCount, LATENCY_WINDOW);
+        if (n < MIN_LATENCY_SAMPLES) {
+            return INITIAL_HEDGE_DELAY;
+        }
+        final long[] sorted = Arrays.copyOf(this.latencies, n);
+        Arrays.sort(sorted);
+        // 95th percentile, nearest rank
+        final long p95 = sorted[(int) Math.ceil(0.95 * n) - 1];
+        return Math.max(MIN_HEDGE_DELAY, p95);
+    }
+
+    private void probe() {
+        for (Endpoint e : this.endpoints) {
+            if (e.isEjected()) {
+                try {
+                    e.client.ping();
+                    e.reinstate();
+                } catch (IOException ex) {
+                    // Still down
+                }
+            }
+        }
+    }
+
+    public String getStatus() {
+        final StringBuilder b = new StringBuilder();
+        if (this.hedging) {
+            b.append("Hedging after ").append(getHedgeDelay()).append(" ms, ").append(this.hedgeCount.get()).append(" hedged requests, ").append(this.hedgeWins.get())
+                    .append(" answered first by the hedge\n");
+        }
+        for (Endpoint e : this.endpoints) {
+            b.append(e).append('\n');
+        }
+        return b.toString();
+    }
+
+    public void close() {
+        this.probeService.shutdownNow();
+        this.hedgeService.shutdownNow();
+    }
+
+    /**
+     * Transcribe a file on the given servers, and print their status
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: RemoteEndpointPool file.wav url...");
+            System.exit(1);
+        }
+        final RemoteEndpointPool pool = new RemoteEndpointPool(Arrays.asList(args).subList(1, args.length));
+        System.out.println("Response: " + pool.transcribe(new File(args[0]), 0.0, 0.2, null));
+        System.out.print(pool.getStatus());
+        pool.close();
+    }
+}
@@ -1,108 +1,955 @@
 package whisper;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
 
-import org.json.JSON;
-import org.json.JSONObject;
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
 
 public class RemoteWhisperCPP {
     private static final String BOUNDARY = "boundary" + System.currentTimeMillis();
     private static final String LINE_FEED = "\r\n";
     private static final String TWO_HYPHENS = "--";
+    private static final int WAV_HEADER_LENGTH = 44;
+    // The server closes idle connections after a few seconds (5s for whisper-server)
+    private static final long KEEP_WARM_INTERVAL = 2000;
+    // Streaming upload : check for new audio
+    private static final long STREAMING_POLL_INTERVAL = 50;
+    // Header of the servers accepting a chunked request with a WAV file of unknown length (the value
+    // is "wav"), set by WhisperServer
+    static final String STREAMING_UPLOAD_HEADER = "X-Streaming-Upload";
+    // Lengths of a WAV file streamed before its end is known, the server reads up to the end of the part
+    static final long STREAMED_WAV_LENGTH = 0xFFFFFFFFL - 36;
     private final String requestURL;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private volatile long lastUse;
+    private volatile UploadFormat uploadFormat = UploadFormat.WAV;
+    private volatile boolean flacRejected;
+    // The last response had the STREAMING_UPLOAD_HEADER
+    private volatile boolean chunkedUploadAccepted;
+
+    /**
+     * Format of the uploaded audio
+     */
+    public enum UploadFormat {
+        WAV, FLAC
+    }
+
+    /**
+     * Error reported by the server, the request reached it
+     */
+    static final class ServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+        // HTTP status, 0 for an error in a successful response
+        private final int status;
+
+        ServerException(String message) {
+            this(0, message);
+        }
+
+        ServerException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * @return true if the server does not accept the format of the audio (415, or an error
+         *         about the audio format), other errors may be temporary
+         */
+        boolean isFormatRejected() {
+            if (this.status == 415) {
+                return true;
+            }
+            final String message = String.valueOf(getMessage()).toLowerCase(Locale.ROOT);
+            return message.contains("flac") || message.contains("format") || message.contains("read audio");
+        }
+    }
+
+    /**
+     * The server is saturated (503), the request should go to another server or wait
+     */
+    static final class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        // Retry-After in ms
+        private final long retryAfter;
+
+        ServerBusyException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return the wait asked by the server in ms (1s if not given)
+         */
+        long getRetryAfter() {
+            return this.retryAfter;
+        }
+    }
+
+    /**
+     * Failure before any byte of the response, other than a timeout or a refused connection : most
+     * likely a kept alive connection the server closed while it was idle (which one the JDK reuses is
+     * not known). The request can be sent again once.
+     */
+    private static final class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Writer of a request body
+     */
+    interface Body {
+        /**
+         * @return the length of the body, -1 if not known (sent in chunks)
+         */
+        long getLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Reader of a successful response, while it is received
+     */
+    interface ResponseReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /**
+     * Handle on a running request, to cancel it from another thread
+     */
+    public static final class Call {
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled;
+
+        /**
+         * Abort the request, closing its connection. The thread sending it gets an IOException.
+         */
+        public void cancel() {
+            this.cancelled = true;
+            final HttpURLConnection c = this.connection;
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        void start(HttpURLConnection c) throws IOException {
+            this.connection = c;
+            if (this.cancelled) {
+                throw new IOException("cancelled");
+            }
+        }
+    }
 
     public RemoteWhisperCPP(String url) {
+        this(url, 5000, 120000);
+    }
+
+    /**
+     * The client can be used for many requests, the connections are kept alive and reused.
+     *
+     * @param connectTimeout connection timeout in ms
+     * @param readTimeout timeout in ms while waiting for the response
+     */
+    public RemoteWhisperCPP(String url, int connectTimeout, int readTimeout) {
         this.requestURL = url;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Open a connection to the server (if there is no recent one), so the next request does not
+     * pay for the TCP and TLS setup. Sends an OPTIONS request.
+     */
+    public void prewarm() {
+        if (System.currentTimeMillis() - this.lastUse < KEEP_WARM_INTERVAL) {
+            return;
+        }
+        try {
+            ping();
+        } catch (IOException e) {
+            System.out.println("Cannot connect to " + this.requestURL + " (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Check that the server answers, with an OPTIONS request.
+     *
+     * @throws IOException if the server can't be reached or answers with an error
+     */
+    public void ping() throws IOException {
+        this.lastUse = System.currentTimeMillis();
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection();
+            connection.setRequestMethod("OPTIONS");
+            final int responseCode = connection.getResponseCode();
+            this.chunkedUploadAccepted = isChunkedUploadAccepted(connection);
+            readFully(connection);
+            connection = null;
+            if (responseCode >= 500) {
+                throw new IOException("HTTP error " + responseCode);
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public String getURL() {
+        return this.requestURL;
+    }
+
+    /**
+     * Set the format of the uploaded recordings. If the server rejects FLAC (415, or an error about
+     * the audio format), WAV is used.
+     */
+    public void setUploadFormat(UploadFormat format) {
+        this.uploadFormat = format;
+    }
+
+    public UploadFormat getUploadFormat() {
+        return this.uploadFormat;
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        URL url = new URL(this.requestURL);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(this.readTimeout);
+        return connection;
+    }
+
+    /**
+     * Read the whole response and close it, so the connection can be reused
+     *
+     * @return the response, the lines concatenated
+     */
+    private static String readFully(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        InputStream responseStream = (responseCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        if (responseStream == null) {
+            return "";
+        }
+        StringBuilder response = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(responseStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                response.append(line);
+            }
+        }
+        return response.toString();
     }
 
     public String transcribe(File file, double temperature, double temperatureInc) throws IOException {
+        return transcribe(file, temperature, temperatureInc, null);
+    }
+
+    /**
+     * @param utterance marked when the request is sent and the response received (can be null)
+     */
+    public String transcribe(final File file, final double temperature, final double temperatureInc, LatencyTracker.Utterance utterance) throws IOException {
+        final String contentType = Files.probeContentType(file.toPath());
+        return post(new Body() {
+
+            @Override
+            public long getLength() {
+                return getFilePartHeader(file.getName(), contentType).length + file.length() + getParametersPart(temperature, temperatureInc, "json").length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeBody(out, file, temperature, temperatureInc, "json");
+            }
+        }, RemoteWhisperCPP::readText, utterance, null);
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio. The WAV file is generated while the request is sent,
+     * without temporary file.
+     *
+     * @param minLength minimum length in bytes of the audio, padded with silence
+     * @param utterance marked when the request is sent and the response received (can be null)
+     */
+    public String transcribe(SegmentedAudioStore audio, long minLength, double temperature, double temperatureInc, LatencyTracker.Utterance utterance) throws IOException {
+        return transcribe(audio, minLength, temperature, temperatureInc, utterance, null);
+    }
+
+    /**
+     * Same as transcribe(SegmentedAudioStore, long, double, double, Utterance), the request can be
+     * cancelled with the given call (can be null)
+     */
+    public String transcribe(SegmentedAudioStore audio, long minLength, double temperature, double temperatureInc, LatencyTracker.Utterance utterance, Call call) throws IOException {
+        return transcribe(audio, minLength, temperature, temperatureInc, "json", RemoteWhisperCPP::readText, utterance, call);
+    }
+
+    /**
+     * Transcribe 16kHz 16 bits mono PCM audio, with the timestamps and the probabilities of the
+     * tokens, like LocalWhisperCPP. The verbose response is parsed while it is received.
+     *
+     * @param minLength minimum length in bytes of the audio, padded with silence
+     * @param utterance marked when the request is sent and the response received (can be null)
+     */
+    public List<WhisperSegment> transcribeWithTime(SegmentedAudioStore audio, long minLength, double temperature, double temperatureInc, LatencyTracker.Utterance utterance)
+            throws IOException {
+        return transcribeWithTime(audio, minLength, temperature, temperatureInc, utterance, null);
+    }
+
+    /**
+     * Same as transcribeWithTime(SegmentedAudioStore, long, double, double, Utterance), the request
+     * can be cancelled with the given call (can be null)
+     */
+    public List<WhisperSegment> transcribeWithTime(SegmentedAudioStore audio, long minLength, double temperature, double temperatureInc, LatencyTracker.Utterance utterance, Call call)
+            throws IOException {
+        final List<WhisperSegment> segments = new ArrayList<>();
+        transcribeWithTime(audio, minLength, temperature, temperatureInc, utterance, call, segments::add);
+        return segments;
+    }
+
+    /**
+     * Same as transcribeWithTime(SegmentedAudioStore, long, double, double, Utterance, Call), each
+     * segment is given to the consumer as soon as it is received, the response is not kept in
+     * memory. The request is sent again only if it failed before the response.
+     *
+     * @return the number of segments
+     */
+    public int transcribeWithTime(SegmentedAudioStore audio, long minLength, double temperature, double temperatureInc, LatencyTracker.Utterance utterance, Call call,
+            final Consumer<WhisperSegment> consumer) throws IOException {
+        return transcribe(audio, minLength, temperature, temperatureInc, "verbose_json", in -> readSegments(in, consumer), utterance, call);
+    }
+
+    private <T> T transcribe(final SegmentedAudioStore audio, final long minLength, final double temperature, final double temperatureInc, final String responseFormat,
+            ResponseReader<T> reader, LatencyTracker.Utterance utterance, Call call) throws IOException {
+        final long dataLength = Math.max(audio.size(), minLength);
+        if (this.uploadFormat == UploadFormat.FLAC && !this.flacRejected) {
+            // Encoded before the upload, the length of the request must be known
+            final byte[] flac = FlacEncoder.encode(audio, dataLength);
+            try {
+                return post(new Body() {
+
+                    @Override
+                    public long getLength() {
+                        return getFilePartHeader("audio.flac", "audio/flac").length + flac.length + getParametersPart(temperature, temperatureInc, responseFormat).length;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        writeBody(out, flac, temperature, temperatureInc, responseFormat);
+                    }
+                }, reader, utterance, call);
+            } catch (ServerException e) {
+                if (!e.isFormatRejected()) {
+                    throw e;
+                }
+                System.out.println("FLAC upload rejected by " + this.requestURL + " (" + e.getMessage() + "), using WAV");
+                this.flacRejected = true;
+            }
+        }
+        return post(new Body() {
+
+            @Override
+            public long getLength() {
+                return getFilePartHeader("audio.wav", "audio/wav").length + WAV_HEADER_LENGTH + dataLength + getParametersPart(temperature, temperatureInc, responseFormat).length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writeBody(out, audio, dataLength, temperature, temperatureInc, responseFormat);
+            }
+        }, reader, utterance, call);
+    }
+
+    private <T> T post(Body body, ResponseReader<T> reader, LatencyTracker.Utterance utterance, Call call) throws IOException {
+        try {
+            return send(body, reader, utterance, call);
+        } catch (StaleConnectionException e) {
+            // Probably a kept alive connection closed by the server, retry once with a new one
+            System.out.println("Retrying request to " + this.requestURL + " (" + e.getMessage() + ")");
+            try {
+                return send(body, reader, utterance, call);
+            } catch (ServerException | ServerBusyException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                throw failure(ex, call);
+            }
+        } catch (ServerException | ServerBusyException e) {
+            throw e;
+        } catch (IOException e) {
+            throw failure(e, call);
+        }
+    }
 
+    private IOException failure(IOException e, Call call) {
+        if (call != null && call.isCancelled()) {
+            return new IOException("Request to " + this.requestURL + " cancelled", e);
+        }
+        if (e instanceof SocketTimeoutException || e instanceof ConnectException || e instanceof StaleConnectionException) {
+            return new IOException("Cannot connect to " + this.requestURL + " (" + e.getMessage() + ")", e);
+        }
+        return e;
+    }
+
+    private <T> T send(Body body, ResponseReader<T> reader, LatencyTracker.Utterance utterance, Call call) throws IOException {
+        this.lastUse = System.currentTimeMillis();
         HttpURLConnection connection = null;
         try {
             // Create connection
-            URL url = new URL(this.requestURL);
-            connection = (HttpURLConnection) url.openConnection();
+            connection = openConnection();
+            if (call != null) {
+                call.start(connection);
+            }
             connection.setRequestMethod("POST");
             connection.setDoOutput(true);
             connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            // Stream the body instead of buffering it
+            if (body.getLength() < 0) {
+                connection.setChunkedStreamingMode(16 * 1024);
+            } else {
+                connection.setFixedLengthStreamingMode(body.getLength());
+            }
+
+            try {
+                // Create output stream
+                OutputStream outputStream = connection.getOutputStream();
+                body.writeTo(outputStream);
+                outputStream.flush();
+                if (utterance != null) {
+                    utterance.mark(LatencyTracker.Stage.UPLOADED);
+                }
+                // Status line, the request was processed once it is read
+                connection.getResponseCode();
+            } catch (SocketTimeoutException | ConnectException e) {
+                // The server may be processing the request, or is down
+                throw e;
+            } catch (IOException e) {
+                if (call == null || !call.isCancelled()) {
+                    throw new StaleConnectionException(e);
+                }
+                throw e;
+            }
+
+            // Get Response, the connection is kept alive for the next requests
+            final T result = readResponse(connection, reader, utterance);
+            connection = null;
+            return result;
+        } catch (ServerException | ServerBusyException e) {
+            // The response was read, the connection can be reused
+            connection = null;
+            throw e;
+        } finally {
+            if (call != null) {
+                // Done, a late cancel must not close the kept alive connection
+                call.connection = null;
+            }
+            if (connection != null) {
+                // Failure, don't reuse this connection
+                connection.disconnect();
+            }
+        }
+    }
 
-            // Create output stream
-            OutputStream outputStream = connection.getOutputStream();
-            PrintWriter writer = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), true);
+    private static boolean isChunkedUploadAccepted(HttpURLConnection connection) {
+        return "wav".equalsIgnoreCase(connection.getHeaderField(STREAMING_UPLOAD_HEADER));
+    }
 
-            // Add file part
+    /**
+     * Read the response while it is received, then close it so the connection can be reused
+     */
+    private <T> T readResponse(HttpURLConnection connection, ResponseReader<T> reader, LatencyTracker.Utterance utterance) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        this.chunkedUploadAccepted = isChunkedUploadAccepted(connection);
+        if (responseCode >= 400) {
+            final String response = readFully(connection);
+            if (responseCode == 503) {
+                final long retryAfter = getRetryAfter(connection.getHeaderField("Retry-After"));
+                throw new ServerBusyException("Server busy, retry after " + retryAfter + " ms", retryAfter);
+            }
+            checkResponseCode(responseCode, response);
+        }
+        final T result;
+        try (InputStream in = connection.getInputStream()) {
+            result = reader.read(in);
+            // Trailing whitespace
+            final byte[] buffer = new byte[256];
+            while (in.read(buffer) >= 0) {
+                // Nothing
+            }
+        }
+        this.lastUse = System.currentTimeMillis();
+        System.out.println("Response: " + (result instanceof List ? ((List<?>) result).size() + " segments" : result instanceof Integer ? result + " segments" : result));
+        if (utterance != null) {
+            utterance.mark(LatencyTracker.Stage.RESPONSE_RECEIVED);
+        }
+        return result;
+    }
 
-            writer.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
-            writer.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(file.getName()).append("\"").append(LINE_FEED);
-            writer.append("Content-Type: ").append(Files.probeContentType(file.toPath())).append(LINE_FEED);
-            writer.append(LINE_FEED);
-            writer.flush();
+    /**
+     * @return the text of a json response
+     * @throws ServerException if the response is an error
+     */
+    static String readText(InputStream in) throws IOException {
+        final JsonPullParser parser = new JsonPullParser(in);
+        String text = "";
+        parser.beginObject();
+        while (parser.hasNext()) {
+            final String name = parser.nextName();
+            if (name.equals("text")) {
+                text = parser.nextString();
+            } else if (name.equals("error")) {
+                // For example, an audio format not supported by the server
+                throw new ServerException(parser.nextString());
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return text.trim();
+    }
+
+    /**
+     * @return the segments of a verbose_json response
+     * @throws ServerException if the response is an error
+     */
+    static List<WhisperSegment> readSegments(InputStream in) throws IOException {
+        return new VerboseJsonReader(in).readSegments();
+    }
+
+    /**
+     * @return the number of segments of a verbose_json response, given to the consumer while they
+     *         are read
+     * @throws ServerException if the response is an error
+     */
+    static int readSegments(InputStream in, Consumer<WhisperSegment> consumer) throws IOException {
+        return new VerboseJsonReader(in).readSegments(consumer);
+    }
+
+    /**
+     * @param header Retry-After in seconds (an HTTP date is not supported)
+     * @return the wait in ms, 1s if the header is missing or invalid
+     */
+    static long getRetryAfter(String header) {
+        if (header != null) {
+            try {
+                return Math.max(0, Long.parseLong(header.trim())) * 1000;
+            } catch (NumberFormatException e) {
+                // Date
+            }
+        }
+        return 1000;
+    }
+
+    private static void checkResponseCode(int responseCode, String response) throws IOException {
+        if (responseCode >= 500) {
+            // Busy or broken server
+            throw new IOException("HTTP error " + responseCode + " " + response);
+        }
+        if (responseCode >= 400) {
+            throw new ServerException(responseCode, "HTTP error " + responseCode + " " + response);
+        }
+    }
+
+    /**
+     * Start uploading a recording while it is captured : as a chunked WAV request if the server
+     * accepts it (see STREAMING_UPLOAD_HEADER, learnt from its last answer), else encoded as FLAC for
+     * an upload when it stops.
+     *
+     * @param audio the recording, written by the capture
+     * @return null if the server accepts neither
+     */
+    public StreamingUpload startStreamingUpload(SegmentedAudioStore audio, double temperature, double temperatureInc) {
+        final boolean chunked = this.chunkedUploadAccepted;
+        if (!chunked && this.flacRejected) {
+            return null;
+        }
+        return new StreamingUpload(audio, temperature, temperatureInc, chunked);
+    }
+
+    /**
+     * Upload of a recording while it is captured.
+     *
+     * To a server accepting it (WhisperServer), the request is sent in chunks as the audio is
+     * captured, with a WAV file of unknown length : only the end of the recording remains to send
+     * when the capture stops.
+     *
+     * Otherwise (whisper-server), the recording is encoded as FLAC while it is captured, into a
+     * SegmentedAudioStore, and the request is sent once, when the capture stops, with the exact
+     * number of samples in the FLAC header : whisper-server reads it before decoding and gets no
+     * audio from a stream of unknown length. The audio is never padded beyond the minimum length.
+     */
+    public final class StreamingUpload implements Runnable {
+        private final SegmentedAudioStore audio;
+        private final double temperature;
+        private final double temperatureInc;
+        private final boolean chunked;
+        private final Call call = new Call();
+        private final Thread thread;
+        // Encoded FLAC frames, the header is written once the length is known
+        private final SegmentedAudioStore frames;
+        private volatile IOException error;
+        // Guarded by this
+        private boolean finished;
+        private long minLength;
+        private volatile LatencyTracker.Utterance utterance;
+        // Set by the upload thread, read after it ended
+        private long samples;
+        private String result;
+
+        StreamingUpload(SegmentedAudioStore audio, double temperature, double temperatureInc, boolean chunked) {
+            this.audio = audio;
+            this.temperature = temperature;
+            this.temperatureInc = temperatureInc;
+            this.chunked = chunked;
+            this.frames = chunked ? null : new SegmentedAudioStore();
+            this.thread = new Thread(this, "streaming-upload");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (this.chunked) {
+                    this.result = post(new Body() {
+
+                        @Override
+                        public long getLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            out.write(getFilePartHeader("audio.wav", "audio/wav"));
+                            out.write(getWavHeader(STREAMED_WAV_LENGTH));
+                            copyRecording(out);
+                            out.write(getParametersPart(StreamingUpload.this.temperature, StreamingUpload.this.temperatureInc, "json"));
+                            final LatencyTracker.Utterance u = StreamingUpload.this.utterance;
+                            if (u != null) {
+                                u.mark(LatencyTracker.Stage.UPLOADED);
+                            }
+                        }
+                    }, RemoteWhisperCPP::readText, null, this.call);
+                } else {
+                    encode();
+                }
+            } catch (IOException e) {
+                this.error = e;
+            }
+        }
 
-            FileInputStream inputStream = new FileInputStream(file);
+        private void encode() throws IOException {
+            final FlacEncoder encoder = new FlacEncoder(this.frames.newOutputStream());
+            this.samples = copyRecording(new OutputStream() {
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    encoder.write(b, off, len);
+                }
+            }) / 2;
+            encoder.finish();
+        }
+
+        /**
+         * Copy the recording while it is captured, until finish(), padded with silence up to the
+         * minimum length
+         *
+         * @return the number of bytes copied
+         */
+        private long copyRecording(OutputStream out) throws IOException {
+            final byte[] buffer = new byte[16 * 1024];
+            long position = 0;
+            while (true) {
+                final boolean last;
+                final long length;
+                synchronized (this) {
+                    last = this.finished;
+                    length = last ? Math.max(this.audio.size(), this.minLength) : this.audio.size();
+                }
+                while (position < length) {
+                    int n = this.audio.read(position, buffer, 0, (int) Math.min(buffer.length, length - position));
+                    if (n < 0) {
+                        // Padding up to the minimum length
+                        n = (int) Math.min(buffer.length, length - position);
+                        Arrays.fill(buffer, 0, n, (byte) 0);
+                    } else if (n == 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, n);
+                    position += n;
+                }
+                if (last) {
+                    return position;
+                }
+                // Send the audio captured so far, then wait for more
+                out.flush();
+                try {
+                    synchronized (this) {
+                        if (!this.finished) {
+                            wait(STREAMING_POLL_INTERVAL);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+                if (this.call.isCancelled()) {
+                    throw new IOException("cancelled");
+                }
+            }
+        }
+
+        /**
+         * End the upload and wait for the transcription.
+         *
+         * @param minLength minimum length in bytes of the audio, padded with silence
+         * @param utterance marked when the upload is done and the response received (can be null)
+         */
+        public String finish(long minLength, LatencyTracker.Utterance utterance) throws IOException {
+            this.utterance = utterance;
+            synchronized (this) {
+                this.minLength = minLength;
+                this.finished = true;
+                notifyAll();
+            }
+            try {
+                try {
+                    this.thread.join();
+                } catch (InterruptedException e) {
+                    cancel();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+                if (this.error != null) {
+                    throw this.error;
+                }
+                if (this.chunked) {
+                    if (utterance != null) {
+                        utterance.mark(LatencyTracker.Stage.RESPONSE_RECEIVED);
+                    }
+                    return this.result;
+                }
+                return postFlac(utterance);
+            } finally {
+                if (this.frames != null) {
+                    this.frames.close();
+                }
+            }
+        }
+
+        private String postFlac(LatencyTracker.Utterance utterance) throws IOException {
+            final byte[] header = FlacEncoder.getHeader(this.samples);
+            try {
+                return post(new Body() {
+
+                    @Override
+                    public long getLength() {
+                        return getFilePartHeader("audio.flac", "audio/flac").length + header.length + StreamingUpload.this.frames.size()
+                                + getParametersPart(StreamingUpload.this.temperature, StreamingUpload.this.temperatureInc, "json").length;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        out.write(getFilePartHeader("audio.flac", "audio/flac"));
+                        out.write(header);
+                        final byte[] buffer = new byte[16 * 1024];
+                        try (InputStream in = StreamingUpload.this.frames.newInputStream()) {
+                            int n;
+                            while ((n = in.read(buffer)) >= 0) {
+                                out.write(buffer, 0, n);
+                            }
+                        }
+                        out.write(getParametersPart(StreamingUpload.this.temperature, StreamingUpload.this.temperatureInc, "json"));
+                    }
+                }, RemoteWhisperCPP::readText, utterance, this.call);
+            } catch (ServerException e) {
+                if (e.isFormatRejected()) {
+                    System.out.println("Streaming FLAC upload rejected by " + RemoteWhisperCPP.this.requestURL + " (" + e.getMessage() + ")");
+                    RemoteWhisperCPP.this.flacRejected = true;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Abort the upload, for example if the recording is only silence.
+         */
+        public void cancel() {
+            this.call.cancel();
+            synchronized (this) {
+                notifyAll();
+            }
+            try {
+                // The recording may be closed once the upload stopped reading it
+                this.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.frames != null && !this.thread.isAlive()) {
+                this.frames.close();
+            }
+        }
+    }
+
+    /**
+     * Write the multipart/form-data request body
+     */
+    static void writeBody(OutputStream outputStream, File file, double temperature, double temperatureInc, String responseFormat) throws IOException {
+        // Add file part
+        outputStream.write(getFilePartHeader(file.getName(), Files.probeContentType(file.toPath())));
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
             byte[] buffer = new byte[4096];
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
                 outputStream.write(buffer, 0, bytesRead);
             }
-            outputStream.flush();
-            inputStream.close();
-            writer.append(LINE_FEED);
+        }
+
+        // Add parameters
+        outputStream.write(getParametersPart(temperature, temperatureInc, responseFormat));
+    }
+
+    /**
+     * Write the multipart/form-data request body, with the audio as a FLAC file
+     */
+    static void writeBody(OutputStream outputStream, byte[] flac, double temperature, double temperatureInc, String responseFormat) throws IOException {
+        outputStream.write(getFilePartHeader("audio.flac", "audio/flac"));
+        outputStream.write(flac);
+        outputStream.write(getParametersPart(temperature, temperatureInc, responseFormat));
+    }
+
+    /**
+     * Write the multipart/form-data request body, with the audio as a WAV file
+     *
+     * @param dataLength length in bytes of the WAV data, the audio is padded with silence
+     */
+    static void writeBody(OutputStream outputStream, SegmentedAudioStore audio, long dataLength, double temperature, double temperatureInc, String responseFormat)
+            throws IOException {
+        // Add file part
+        outputStream.write(getFilePartHeader("audio.wav", "audio/wav"));
+        outputStream.write(getWavHeader(dataLength));
+
+        final byte[] buffer = new byte[16 * 1024];
+        long position = 0;
+        while (position < dataLength) {
+            int n = audio.read(position, buffer, 0, (int) Math.min(buffer.length, dataLength - position));
+            if (n < 0) {
+                // Padding
+                n = (int) Math.min(buffer.length, dataLength - position);
+                Arrays.fill(buffer, 0, n, (byte) 0);
+            }
+            outputStream.write(buffer, 0, n);
+            position += n;
+        }
 
-            // Add temperature parameter
-            writer.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
-            writer.append("Content-Disposition: form-data; name=\"temperature\"").append(LINE_FEED).append(LINE_FEED);
-            writer.append(String.valueOf(temperature)).append(LINE_FEED);
+        // Add parameters
+        outputStream.write(getParametersPart(temperature, temperatureInc, responseFormat));
+    }
 
-            // Add temperature_inc parameter
-            writer.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
-            writer.append("Content-Disposition: form-data; name=\"temperature_inc\"").append(LINE_FEED).append(LINE_FEED);
-            writer.append(String.valueOf(temperatureInc)).append(LINE_FEED);
+    private static byte[] getFilePartHeader(String fileName, String contentType) {
+        final StringBuilder b = new StringBuilder();
+        b.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
+        b.append("Content-Disposition: form-data; name=\"file\"; filename=\"").append(fileName).append("\"").append(LINE_FEED);
+        b.append("Content-Type: ").append(contentType).append(LINE_FEED);
+        b.append(LINE_FEED);
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-            // Add response_format parameter
-            writer.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
-            writer.append("Content-Disposition: form-data; name=\"response_format\"").append(LINE_FEED).append(LINE_FEED);
-            writer.append("json").append(LINE_FEED);
+    /**
+     * @param responseFormat json for the text only, verbose_json for the segments
+     */
+    private static byte[] getParametersPart(double temperature, double temperatureInc, String responseFormat) {
+        final StringBuilder b = new StringBuilder();
+        // End of the file part
+        b.append(LINE_FEED);
 
-            // End of multipart/form-data
-            writer.append(TWO_HYPHENS).append(BOUNDARY).append(TWO_HYPHENS).append(LINE_FEED);
-            writer.flush();
+        // Add temperature parameter
+        b.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
+        b.append("Content-Disposition: form-data; name=\"temperature\"").append(LINE_FEED).append(LINE_FEED);
+        b.append(String.valueOf(temperature)).append(LINE_FEED);
 
-            // Get Response
-            int responseCode = connection.getResponseCode();
-            InputStream responseStream = (responseCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        // Add temperature_inc parameter
+        b.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
+        b.append("Content-Disposition: form-data; name=\"temperature_inc\"").append(LINE_FEED).append(LINE_FEED);
+        b.append(String.valueOf(temperatureInc)).append(LINE_FEED);
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(responseStream));
-            StringBuilder response = new StringBuilder();
-            String line;
+        // Add response_format parameter
+        b.append(TWO_HYPHENS).append(BOUNDARY).append(LINE_FEED);
+        b.append("Content-Disposition: form-data; name=\"response_format\"").append(LINE_FEED).append(LINE_FEED);
+        b.append(responseFormat).append(LINE_FEED);
 
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-            reader.close();
-            JSONObject obj = (JSONObject) JSON.parse(response.toString());
-            System.out.println("Response: " + response);
+        // End of multipart/form-data
+        b.append(TWO_HYPHENS).append(BOUNDARY).append(TWO_HYPHENS).append(LINE_FEED);
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-            return obj.optString("text", "").trim();
+    /**
+     * @return the header of a 16kHz 16 bits mono PCM WAV file
+     */
+    static byte[] getWavHeader(long dataLength) {
+        final int sampleRate = 16000;
+        final int channels = 1;
+        final int bits = 16;
+        final ByteArrayOutputStream b = new ByteArrayOutputStream(WAV_HEADER_LENGTH);
+        writeAscii(b, "RIFF");
+        writeInt(b, (int) (36 + dataLength));
+        writeAscii(b, "WAVE");
+        writeAscii(b, "fmt ");
+        writeInt(b, 16);
+        // PCM
+        writeShort(b, 1);
+        writeShort(b, channels);
+        writeInt(b, sampleRate);
+        writeInt(b, sampleRate * channels * bits / 8);
+        writeShort(b, channels * bits / 8);
+        writeShort(b, bits);
+        writeAscii(b, "data");
+        writeInt(b, (int) dataLength);
+        return b.toByteArray();
+    }
 
-        } catch (Exception ex) {
-            throw new IOException("Cannot connect to " + this.requestURL + " (" + ex.getMessage() + ")");
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+    private static void writeAscii(ByteArrayOutputStream b, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        b.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream b, int v) {
+        writeShort(b, v);
+        writeShort(b, v >>> 16);
+    }
+
+    private static void writeShort(ByteArrayOutputStream b, int v) {
+        b.write(v & 0xFF);
+        b.write((v >>> 8) & 0xFF);
     }
 
     // Example usage
@@ -27,7 +27,7 @@ public class RobotTyper {
     /**
      * Inner class to represent key combinations with modifiers
      */
-    private static class KeyCombo {
+    static class KeyCombo {
         final int modifier;
         final int keyCode;
 
@@ -43,7 +43,11 @@ public class RobotTyper {
      * @throws AWTException
      */
     public RobotTyper() throws AWTException {
-        this.robot = new Robot();
+        this(new Robot());
+    }
+
+    RobotTyper(Robot robot) {
+        this.robot = robot;
         initializeKeyMaps();
         detectKeyboardLayout();
     }
@@ -261,19 +265,14 @@ public class RobotTyper {
     }
 
     /**
-     * Type a single character
+     * Get the keys to type a character with the current layout
+     *
+     * @return null if the character is not mapped
      */
-    private void typeChar(char c) {
+    KeyCombo getKeyCombo(char c) {
         // Handle uppercase letters
         if (Character.isUpperCase(c)) {
-            this.robot.keyPress(KeyEvent.VK_SHIFT);
-            try {
-                this.robot.keyPress(KeyEvent.VK_A + (c - 'A'));
-                this.robot.keyRelease(KeyEvent.VK_A + (c - 'A'));
-            } finally {
-                this.robot.keyRelease(KeyEvent.VK_SHIFT);
-            }
-            return;
+            return new KeyCombo(KeyEvent.VK_SHIFT, KeyEvent.VK_A + (c - 'A'));
         }
 
         // Get appropriate key map based on keyboard layout
@@ -283,13 +282,18 @@ public class RobotTyper {
         // Check if the character is in the direct mapping
         Integer keyCode = currentKeyMap.get(c);
         if (keyCode != null) {
-            this.robot.keyPress(keyCode);
-            this.robot.keyRelease(keyCode);
-            return;
+            return new KeyCombo(0, keyCode);
         }
 
         // Check if the character requires a key combination
-        KeyCombo keyCombo = currentSpecialChars.get(c);
+        return currentSpecialChars.get(c);
+    }
+
+    /**
+     * Type a single character
+     */
+    private void typeChar(char c) {
+        KeyCombo keyCombo = getKeyCombo(c);
         if (keyCombo != null) {
             if (keyCombo.modifier != 0) {
                 if (keyCombo.modifier == KeyEvent.VK_ALT_GRAPH) {
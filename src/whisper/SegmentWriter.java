@@ -0,0 +1,143 @@
+package whisper;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Writer of segments as subtitles (SRT, WebVTT), JSON lines or text, one segment after the other. Each
+ * segment is flushed, so the file can be read while the transcription goes on.
+ */
+public final class SegmentWriter implements Closeable {
+
+    public enum Format {
+        SRT("srt"), VTT("vtt"), JSONL("jsonl"), TXT("txt");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return this.extension;
+        }
+    }
+
+    private final Format format;
+    private final Writer out;
+    private int count;
+    // Size of the output in UTF-8
+    private long bytes;
+
+    public SegmentWriter(Format format, Writer out) throws IOException {
+        this.format = format;
+        this.out = out;
+        if (format == Format.VTT) {
+            write("WEBVTT\n\n");
+            out.flush();
+        }
+    }
+
+    private SegmentWriter(Format format, Writer out, int count, long bytes) {
+        this.format = format;
+        this.out = out;
+        this.count = count;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Create or replace a file
+     */
+    public static SegmentWriter open(File file, Format format) throws IOException {
+        return new SegmentWriter(format, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Continue a file written by an interrupted transcription : what was written after the checkpoint
+     * is removed.
+     *
+     * @param count the number of segments written at the checkpoint
+     * @param bytes the size of the file at the checkpoint
+     */
+    public static SegmentWriter resume(File file, Format format, int count, long bytes) throws IOException {
+        try (FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (c.size() < bytes) {
+                throw new IOException(file + " is shorter than at the checkpoint");
+            }
+            c.truncate(bytes);
+        }
+        return new SegmentWriter(format, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)), count, bytes);
+    }
+
+    /**
+     * @param segment times in centiseconds
+     */
+    public void write(WhisperSegment segment) throws IOException {
+        this.count++;
+        final String text = segment.getSentence().trim();
+        switch (this.format) {
+        case SRT:
+            write(this.count + "\n" + formatTime(segment.getStart(), ',') + " --> " + formatTime(segment.getEnd(), ',') + "\n" + text + "\n\n");
+            break;
+        case VTT:
+            write(formatTime(segment.getStart(), '.') + " --> " + formatTime(segment.getEnd(), '.') + "\n" + text + "\n\n");
+            break;
+        case TXT:
+            write(text + "\n");
+            break;
+        default:
+            final JSONObject o = new JSONObject();
+            o.put("start", segment.getStart() / 100.0);
+            o.put("end", segment.getEnd() / 100.0);
+            o.put("text", text);
+            write(o.toString() + "\n");
+            break;
+        }
+        this.out.flush();
+    }
+
+    private void write(String s) throws IOException {
+        this.out.write(s);
+        this.bytes += s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @return the number of segments written
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the size of the output
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return HH:MM:SS,mmm
+     */
+    static String formatTime(long centiseconds, char millisSeparator) {
+        final long ms = centiseconds * 10;
+        return String.format(Locale.ROOT, "%02d:%02d:%02d%c%03d", ms / 3600000, (ms / 60000) % 60, (ms / 1000) % 60, millisSeparator, ms % 1000);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
@@ -0,0 +1,204 @@
+package whisper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 16 bits little endian PCM audio, stored in segments borrowed from an AudioSegmentPool.
+ *
+ * Unlike a ByteArrayOutputStream, the audio is never copied when the store grows and the heap usage
+ * does not depend on the length of the recording. The audio can be read while it is written. The
+ * segments are given back to the pool by close().
+ */
+public class SegmentedAudioStore implements Closeable {
+    private final AudioSegmentPool pool;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private long size;
+
+    public SegmentedAudioStore() {
+        this(AudioSegmentPool.getInstance());
+    }
+
+    public SegmentedAudioStore(AudioSegmentPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+            if (segment == null || !segment.hasRemaining()) {
+                segment = this.pool.acquire();
+                this.segments.add(segment);
+            }
+            final int n = Math.min(length, segment.remaining());
+            segment.put(b, offset, n);
+            offset += n;
+            length -= n;
+            this.size += n;
+        }
+    }
+
+    /**
+     * @return size in bytes
+     */
+    public synchronized long size() {
+        return this.size;
+    }
+
+    /**
+     * Copy bytes, starting at the given position.
+     *
+     * @return the number of bytes copied, -1 if position is at the end of the audio
+     */
+    public synchronized int read(long position, byte[] b, int offset, int length) {
+        if (position >= this.size) {
+            return -1;
+        }
+        length = (int) Math.min(length, this.size - position);
+        int total = 0;
+        while (total < length) {
+            final ByteBuffer segment = this.segments.get((int) (position / AudioSegmentPool.SEGMENT_SIZE)).duplicate();
+            segment.position((int) (position % AudioSegmentPool.SEGMENT_SIZE));
+            final int n = Math.min(length - total, segment.remaining());
+            segment.get(b, offset + total, n);
+            total += n;
+            position += n;
+        }
+        return total;
+    }
+
+    /**
+     * Convert the samples between the from and to byte positions.
+     *
+     * @param minLength minimum length in samples of the returned array, padded with silence
+     */
+    public synchronized float[] toFloats(long from, long to, int minLength) {
+        to = Math.min(to, this.size);
+        final float[] floats = new float[getSampleCount(from, to, minLength)];
+        toFloats(from, to, FloatBuffer.wrap(floats));
+        return floats;
+    }
+
+    /**
+     * Convert the samples between the from and to byte positions into the given buffer, from its
+     * position. The remaining part of the buffer is filled with silence.
+     *
+     * @return the number of samples converted, without the padding
+     */
+    public synchronized int toFloats(long from, long to, FloatBuffer out) {
+        to = Math.min(to, this.size);
+        final PcmConverter converter = PcmConverter.getInstance();
+        final int start = out.position();
+        long position = from;
+        while (position + 1 < to) {
+            final ByteBuffer segment = this.segments.get((int) (position / AudioSegmentPool.SEGMENT_SIZE)).duplicate();
+            segment.position((int) (position % AudioSegmentPool.SEGMENT_SIZE));
+            final int count = (int) Math.min(segment.capacity() - segment.position(), to - position) / 2;
+            if (count == 0) {
+                // Odd position at the end of a segment
+                break;
+            }
+            converter.toFloats(segment, count, out, null);
+            position += 2 * count;
+        }
+        final int converted = out.position() - start;
+        while (out.hasRemaining()) {
+            out.put(0f);
+        }
+        return converted;
+    }
+
+    /**
+     * @return the number of samples between the from and to byte positions, at least minLength
+     */
+    public synchronized int getSampleCount(long from, long to, int minLength) {
+        return Math.max((int) ((Math.min(to, this.size) - from) / 2), minLength);
+    }
+
+    /**
+     * @param minLength minimum length in samples of the returned array, padded with silence
+     */
+    public float[] toFloats(int minLength) {
+        return toFloats(0, size(), minLength);
+    }
+
+    public InputStream newInputStream() {
+        return newInputStream(0);
+    }
+
+    /**
+     * @param minLength minimum length in bytes of the stream, padded with silence
+     */
+    public InputStream newInputStream(final long minLength) {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n = SegmentedAudioStore.this.read(this.position, b, off, len);
+                if (n < 0) {
+                    // Padding
+                    n = (int) Math.min(len, minLength - this.position);
+                    if (n <= 0) {
+                        return -1;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        b[off + i] = 0;
+                    }
+                }
+                this.position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(size(), minLength) - this.position);
+            }
+        };
+    }
+
+    /**
+     * @return a stream appending to the store, for other bytes than PCM (for example encoded audio)
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                SegmentedAudioStore.this.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Give the segments back to the pool, the store is empty after this call.
+     */
+    @Override
+    public synchronized void close() {
+        for (ByteBuffer segment : this.segments) {
+            this.pool.release(segment);
+        }
+        this.segments.clear();
+        this.size = 0;
+    }
+}
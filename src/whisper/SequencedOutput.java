@@ -0,0 +1,39 @@
+package whisper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Run the outputs of parallel tasks in the order the tasks were submitted.
+ *
+ * A ticket is taken when a task is submitted, the task completes its ticket with the output to
+ * run (or null if there is nothing to output). Outputs are run as soon as all the previous tickets
+ * are completed.
+ */
+public class SequencedOutput {
+    private long nextTicket;
+    private long nextToRun;
+    private final Map<Long, Runnable> completed = new HashMap<>();
+
+    public synchronized long newTicket() {
+        return this.nextTicket++;
+    }
+
+    /**
+     * @param output run in the calling thread, or in the thread completing the previous ticket
+     */
+    public synchronized void complete(long ticket, Runnable output) {
+        this.completed.put(ticket, output);
+        while (this.completed.containsKey(this.nextToRun)) {
+            final Runnable r = this.completed.remove(this.nextToRun);
+            this.nextToRun++;
+            if (r != null) {
+                try {
+                    r.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package whisper;
+
+import java.io.IOException;
+
+/**
+ * Split captured audio into speech segments using a VoiceActivityDetector.
+ *
+ * A segment starts at the first speech frame (with a short pre-roll to keep the attack of the first
+ * word) and ends when the speech stopped for the hangover duration. Segments with less speech than
+ * the minimum speech length (clicks, coughs...) are dropped, segments longer than the maximum
+ * length are split so a single transcription stays under the whisper window.
+ */
+public class SpeechSegmenter {
+
+    public interface Listener {
+        /**
+         * Called from the thread calling write(), the listener owns the segment and must close it.
+         */
+        void speechSegment(SegmentedAudioStore segment);
+    }
+
+    private static final int BYTES_PER_MS = 32;
+
+    private final VoiceActivityDetector vad;
+    private final Listener listener;
+    private final int frameLength;
+    private final int hangoverFrames;
+    private final int minSpeechFrames;
+    private final long maxSegmentLength;
+
+    // Incomplete frame from the previous write
+    private final byte[] frame;
+    private int frameFill;
+    // Last frames before the speech
+    private final byte[] preRoll;
+    private int preRollFrames;
+    private int preRollStart;
+
+    private SegmentedAudioStore current;
+    private int speechFrames;
+    private int silenceFrames;
+
+    public SpeechSegmenter(VoiceActivityDetector vad, Listener listener) {
+        this(vad, listener, 200, 600, 250, 28000);
+    }
+
+    /**
+     * @param preRollMs audio kept before the first speech frame
+     * @param hangoverMs non speech duration ending a segment
+     * @param minSpeechMs minimum speech duration of a segment
+     * @param maxSegmentMs maximum length of a segment
+     */
+    public SpeechSegmenter(VoiceActivityDetector vad, Listener listener, int preRollMs, int hangoverMs, int minSpeechMs, int maxSegmentMs) {
+        this.vad = vad;
+        this.listener = listener;
+        this.frameLength = vad.getFrameLength();
+        final int frameMs = this.frameLength / BYTES_PER_MS;
+        this.hangoverFrames = Math.max(1, hangoverMs / frameMs);
+        this.minSpeechFrames = Math.max(1, minSpeechMs / frameMs);
+        this.maxSegmentLength = (long) maxSegmentMs * BYTES_PER_MS;
+        this.frame = new byte[this.frameLength];
+        this.preRoll = new byte[Math.max(1, preRollMs / frameMs) * this.frameLength];
+    }
+
+    public void write(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int n = Math.min(length - offset, this.frameLength - this.frameFill);
+            System.arraycopy(data, offset, this.frame, this.frameFill, n);
+            this.frameFill += n;
+            offset += n;
+            if (this.frameFill == this.frameLength) {
+                processFrame();
+                this.frameFill = 0;
+            }
+        }
+    }
+
+    /**
+     * End of the audio.
+     *
+     * @return the last segment, null if it does not contain enough speech
+     */
+    public SegmentedAudioStore finish() throws IOException {
+        if (this.current != null && this.frameFill > 0) {
+            this.current.write(this.frame, 0, this.frameFill);
+        }
+        this.frameFill = 0;
+        final SegmentedAudioStore last = this.current;
+        this.current = null;
+        if (last != null && this.speechFrames < this.minSpeechFrames) {
+            last.close();
+            return null;
+        }
+        return last;
+    }
+
+    private void processFrame() throws IOException {
+        final boolean speech = this.vad.isSpeech(this.frame, 0);
+        if (this.current == null) {
+            if (speech) {
+                this.current = new SegmentedAudioStore();
+                final int preRollCapacity = this.preRoll.length / this.frameLength;
+                for (int i = 0; i < this.preRollFrames; i++) {
+                    final int index = (this.preRollStart + i) % preRollCapacity;
+                    this.current.write(this.preRoll, index * this.frameLength, this.frameLength);
+                }
+                this.preRollFrames = 0;
+                this.preRollStart = 0;
+                this.current.write(this.frame, 0, this.frameLength);
+                this.speechFrames = 1;
+                this.silenceFrames = 0;
+            } else {
+                addToPreRoll();
+            }
+            return;
+        }
+
+        this.current.write(this.frame, 0, this.frameLength);
+        if (speech) {
+            this.speechFrames++;
+            this.silenceFrames = 0;
+        } else {
+            this.silenceFrames++;
+        }
+        if (this.silenceFrames >= this.hangoverFrames || this.current.size() >= this.maxSegmentLength) {
+            endSegment();
+        }
+    }
+
+    private void endSegment() {
+        final SegmentedAudioStore segment = this.current;
+        this.current = null;
+        if (this.speechFrames >= this.minSpeechFrames) {
+            this.listener.speechSegment(segment);
+        } else {
+            segment.close();
+        }
+    }
+
+    private void addToPreRoll() {
+        final int capacity = this.preRoll.length / this.frameLength;
+        final int index;
+        if (this.preRollFrames < capacity) {
+            index = (this.preRollStart + this.preRollFrames) % capacity;
+            this.preRollFrames++;
+        } else {
+            // Overwrite the oldest frame
+            index = this.preRollStart;
+            this.preRollStart = (this.preRollStart + 1) % capacity;
+        }
+        System.arraycopy(this.frame, 0, this.preRoll, index * this.frameLength, this.frameLength);
+    }
+
+    /**
+     * @return true if the audio contains at least one speech segment
+     */
+    public static boolean containsSpeech(SegmentedAudioStore audio, VoiceActivityDetector vad) {
+        final int frameLength = vad.getFrameLength();
+        final int minSpeechFrames = Math.max(1, 250 / (frameLength / BYTES_PER_MS));
+        final byte[] buffer = new byte[frameLength * 50];
+        long position = 0;
+        int speechFrames = 0;
+        int n;
+        while ((n = audio.read(position, buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i + frameLength <= n; i += frameLength) {
+                if (vad.isSpeech(buffer, i)) {
+                    speechFrames++;
+                    if (speechFrames >= minSpeechFrames) {
+                        return true;
+                    }
+                }
+            }
+            position += n;
+        }
+        return false;
+    }
+}
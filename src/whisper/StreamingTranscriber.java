@@ -0,0 +1,191 @@
+package whisper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * Transcribe a recording while it is still in progress.
+ *
+ * The audio after the last committed position is transcribed again and again (sliding window) using
+ * a whisper state kept for the whole recording. Leading segments which are identical in two
+ * consecutive hypotheses are committed and the window start moves after them, so when the recording
+ * stops only the last unconfirmed part has to be transcribed.
+ *
+ * append() is called from the capture thread, update() and finish() from a single transcription
+ * thread.
+ */
+public class StreamingTranscriber {
+    private static final int SAMPLE_RATE = 16000;
+    // Segment timestamps are in 1/100 s
+    private static final int BYTES_PER_TIMESTAMP = SAMPLE_RATE * 2 / 100;
+    // 1s of new audio between two updates
+    private static final int UPDATE_INTERVAL_BYTES = SAMPLE_RATE * 2;
+    // Whisper often rewrites the last words, don't commit the last second
+    private static final int UNSTABLE_TAIL_TIMESTAMP = 100;
+    // Above 25s, commit everything but the last segment to keep the window short
+    private static final int MAX_WINDOW_BYTES = SAMPLE_RATE * 2 * 25;
+    private static final int MIN_WINDOW_BYTES = (int) (SAMPLE_RATE * 2 * 2.1);
+    private static final int MIN_TAIL_BYTES = SAMPLE_RATE * 2 / 5;
+    // Length of committed text given as prompt
+    private static final int PROMPT_LENGTH = 200;
+
+    private final LocalWhisperCPP whisper;
+    private WhisperStatePool.State state;
+    private boolean closed;
+
+    // Captured audio
+    private final SegmentedAudioStore audio = new SegmentedAudioStore();
+    private long lastUpdateLength;
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+
+    // Audio before committedLength is already transcribed
+    private long committedLength;
+    private final StringBuilder committedText = new StringBuilder();
+    private List<WhisperSegment> previousHypothesis = Collections.emptyList();
+    private String tentativeText = "";
+
+    /**
+     * @param whisper the model, the reference is released by close()
+     */
+    public StreamingTranscriber(LocalWhisperCPP whisper) {
+        this.whisper = whisper;
+    }
+
+    public void append(byte[] data, int length) throws IOException {
+        this.audio.write(data, 0, length);
+    }
+
+    /**
+     * @return true if enough audio was captured since the last update and no update is already
+     *         queued, the caller must then call update()
+     */
+    public synchronized boolean needsUpdate() {
+        if (this.audio.size() - this.lastUpdateLength < UPDATE_INTERVAL_BYTES) {
+            return false;
+        }
+        return this.updatePending.compareAndSet(false, true);
+    }
+
+    /**
+     * Transcribe the current window and commit the stable part of the hypothesis.
+     */
+    public void update() throws IOException {
+        try {
+            final long start;
+            final long end;
+            synchronized (this) {
+                start = this.committedLength;
+                end = this.audio.size();
+                this.lastUpdateLength = end;
+            }
+            final List<WhisperSegment> hypothesis = this.whisper.transcribe(getState(), DecodingProfile.STREAMING, this.audio, start, end, MIN_WINDOW_BYTES / 2, getPrompt());
+            commit(start, end, hypothesis);
+        } finally {
+            this.updatePending.set(false);
+        }
+    }
+
+    /**
+     * Transcribe the remaining audio and release the whisper state, must be called once the capture
+     * is stopped.
+     *
+     * @return the full text of the recording
+     */
+    public String finish() throws IOException {
+        try {
+            final long start;
+            synchronized (this) {
+                start = this.committedLength;
+            }
+            final long end = this.audio.size();
+            if (end - start >= MIN_TAIL_BYTES) {
+                for (WhisperSegment segment : this.whisper.transcribe(getState(), DecodingProfile.STREAMING, this.audio, start, end, MIN_WINDOW_BYTES / 2, getPrompt())) {
+                    this.committedText.append(segment.getSentence());
+                }
+            } else {
+                // Too short to be transcribed, keep the last hypothesis
+                this.committedText.append(this.tentativeText);
+            }
+            this.tentativeText = "";
+            return this.committedText.toString().trim();
+        } finally {
+            close();
+        }
+    }
+
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.audio.close();
+        if (this.state != null) {
+            this.whisper.releaseState(this.state);
+            this.state = null;
+        }
+        this.whisper.release();
+    }
+
+    public String getCommittedText() {
+        return this.committedText.toString().trim();
+    }
+
+    public String getTentativeText() {
+        return this.tentativeText.trim();
+    }
+
+    private WhisperStatePool.State getState() throws IOException {
+        if (this.state == null) {
+            this.state = this.whisper.acquireState();
+        }
+        return this.state;
+    }
+
+    private String getPrompt() {
+        if (this.committedText.length() == 0) {
+            return null;
+        }
+        return this.committedText.substring(Math.max(0, this.committedText.length() - PROMPT_LENGTH));
+    }
+
+    private void commit(long start, long end, List<WhisperSegment> hypothesis) {
+        final long windowLength = (end - start) / BYTES_PER_TIMESTAMP;
+        int stableCount = 0;
+        final int max = Math.min(hypothesis.size(), this.previousHypothesis.size());
+        while (stableCount < max) {
+            final WhisperSegment segment = hypothesis.get(stableCount);
+            if (segment.getEnd() > windowLength - UNSTABLE_TAIL_TIMESTAMP || !sameText(segment, this.previousHypothesis.get(stableCount))) {
+                break;
+            }
+            stableCount++;
+        }
+        if (end - start > MAX_WINDOW_BYTES) {
+            stableCount = Math.max(stableCount, hypothesis.size() > 1 ? hypothesis.size() - 1 : hypothesis.size());
+        }
+
+        if (stableCount > 0) {
+            for (int i = 0; i < stableCount; i++) {
+                this.committedText.append(hypothesis.get(i).getSentence());
+            }
+            final long newCommittedLength = start + Math.min(end - start, hypothesis.get(stableCount - 1).getEnd() * BYTES_PER_TIMESTAMP);
+            synchronized (this) {
+                this.committedLength = newCommittedLength;
+            }
+        }
+        this.previousHypothesis = new ArrayList<>(hypothesis.subList(stableCount, hypothesis.size()));
+        final StringBuilder b = new StringBuilder();
+        for (WhisperSegment segment : this.previousHypothesis) {
+            b.append(segment.getSentence());
+        }
+        this.tentativeText = b.toString();
+    }
+
+    private static boolean sameText(WhisperSegment s1, WhisperSegment s2) {
+        return s1.getSentence().trim().equalsIgnoreCase(s2.getSentence().trim());
+    }
+}
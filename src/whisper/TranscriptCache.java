@@ -0,0 +1,286 @@
+package whisper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * On disk cache of transcriptions, addressed by content : the key is a hash of the PCM audio, of the
+ * model and of the decoding profile, so a file transcribed again with the same settings is read
+ * from the cache, and changing the model or the profile gives new keys.
+ *
+ * The segments of each key are in a file of a directory named by the first 2 characters of the key,
+ * so no directory gets too large. The entries, their sizes and their order of use are kept in memory
+ * and in an append only index log, replayed at startup and compacted when it gets too long. The
+ * least recently used entries are removed when the cache is larger than its maximum size.
+ */
+public class TranscriptCache {
+    private static final String INDEX = "index.log";
+    // Version of the key and of the entries
+    private static final String VERSION = "mister-whisper-cache-1";
+    // Length of the keys in hex characters (128 bits)
+    private static final int KEY_LENGTH = 32;
+
+    private final File dir;
+    private final long maxSize;
+    // Entries and their sizes, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private Writer index;
+    private int indexLines;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param maxSize maximum size of the entries in bytes
+     */
+    public TranscriptCache(File dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        Files.createDirectories(dir.toPath());
+        final File indexFile = new File(dir, INDEX);
+        if (indexFile.exists()) {
+            readIndex(indexFile);
+        }
+        this.index = openIndex(true);
+        evict();
+    }
+
+    /**
+     * Replay the index log : P key size (put), A key (access), D key (delete)
+     */
+    private void readIndex(File indexFile) throws IOException {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                this.indexLines++;
+                final String[] parts = line.split(" ");
+                if (parts.length < 2 || parts[1].length() != KEY_LENGTH) {
+                    // Last line written during a crash
+                    continue;
+                }
+                final String key = parts[1];
+                if (parts[0].equals("P") && parts.length == 3) {
+                    final Long previous = this.entries.put(key, Long.parseLong(parts[2]));
+                    this.size += Long.parseLong(parts[2]) - (previous == null ? 0 : previous);
+                } else if (parts[0].equals("A")) {
+                    this.entries.get(key);
+                } else if (parts[0].equals("D")) {
+                    final Long previous = this.entries.remove(key);
+                    if (previous != null) {
+                        this.size -= previous;
+                    }
+                }
+            }
+        }
+        System.out.println("Transcript cache " + this.dir + " : " + this.entries.size() + " entries, " + this.size / (1024 * 1024) + " MB");
+    }
+
+    private Writer openIndex(boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this.dir, INDEX), append), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param model the model file, identified by its name, size and date
+     * @return the key of a transcription of 16kHz 16 bits mono PCM audio
+     */
+    public static String getKey(SegmentedAudioStore audio, File model, DecodingProfile profile) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final String settings = VERSION + "\n" + model.getName() + " " + model.length() + " " + model.lastModified() + "\n" + profile.getKey() + "\n";
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        final byte[] buffer = new byte[64 * 1024];
+        final long size = audio.size();
+        long position = 0;
+        while (position < size) {
+            final int n = audio.read(position, buffer, 0, (int) Math.min(buffer.length, size - position));
+            if (n <= 0) {
+                break;
+            }
+            digest.update(buffer, 0, n);
+            position += n;
+        }
+        final byte[] hash = digest.digest();
+        final StringBuilder b = new StringBuilder(KEY_LENGTH);
+        for (int i = 0; i < KEY_LENGTH / 2; i++) {
+            b.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    private File getFile(String key) {
+        return new File(new File(this.dir, key.substring(0, 2)), key + ".json");
+    }
+
+    /**
+     * @return the segments of the key, null if not in the cache
+     */
+    public List<WhisperSegment> get(String key) throws IOException {
+        final byte[] content;
+        synchronized (this) {
+            if (!this.entries.containsKey(key)) {
+                this.misses++;
+                return null;
+            }
+            final File f = getFile(key);
+            try {
+                content = Files.readAllBytes(f.toPath());
+            } catch (IOException e) {
+                // Removed from outside
+                this.size -= this.entries.remove(key);
+                log("D " + key);
+                this.misses++;
+                return null;
+            }
+            // Most recently used
+            this.entries.get(key);
+            log("A " + key);
+            this.hits++;
+        }
+        return readSegments(content);
+    }
+
+    /**
+     * Store the segments of a key, then remove the least recently used entries if the cache is too
+     * large.
+     */
+    public void put(String key, List<WhisperSegment> segments) throws IOException {
+        final JSONArray array = new JSONArray(segments.size());
+        for (WhisperSegment s : segments) {
+            final JSONObject o = new JSONObject();
+            o.put("start", s.getStart());
+            o.put("end", s.getEnd());
+            o.put("text", s.getSentence());
+            array.add(o);
+        }
+        final byte[] content = array.toString().getBytes(StandardCharsets.UTF_8);
+        final File f = getFile(key);
+        Files.createDirectories(f.getParentFile().toPath());
+        final File tmp = new File(f.getParentFile(), key + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(tmp.toPath(), content);
+        synchronized (this) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            final Long previous = this.entries.put(key, (long) content.length);
+            this.size += content.length - (previous == null ? 0 : previous);
+            log("P " + key + " " + content.length);
+            evict();
+            // Not synced, a put lost in a crash leaves an unknown file, rewritten by the next put
+            this.index.flush();
+        }
+    }
+
+    private static List<WhisperSegment> readSegments(byte[] content) throws IOException {
+        final List<WhisperSegment> segments = new ArrayList<>();
+        final JsonPullParser p = new JsonPullParser(new ByteArrayInputStream(content));
+        p.beginArray();
+        while (p.hasNext()) {
+            final WhisperSegment s = new WhisperSegment();
+            p.beginObject();
+            while (p.hasNext()) {
+                final String name = p.nextName();
+                if (name.equals("start")) {
+                    s.setStart(p.nextLong());
+                } else if (name.equals("end")) {
+                    s.setEnd(p.nextLong());
+                } else if (name.equals("text")) {
+                    s.setSentence(p.nextString());
+                } else {
+                    p.skipValue();
+                }
+            }
+            p.endObject();
+            segments.add(s);
+        }
+        p.endArray();
+        return segments;
+    }
+
+    private void evict() throws IOException {
+        final Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && it.hasNext()) {
+            final Map.Entry<String, Long> e = it.next();
+            Files.deleteIfExists(getFile(e.getKey()).toPath());
+            this.size -= e.getValue();
+            it.remove();
+            log("D " + e.getKey());
+        }
+    }
+
+    private void log(String line) throws IOException {
+        this.index.write(line);
+        this.index.write('\n');
+        this.indexLines++;
+        if (this.indexLines > 2 * this.entries.size() + 1000) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the index log with one line per entry, in the order of use
+     */
+    private void compact() throws IOException {
+        this.index.close();
+        final File tmp = new File(this.dir, INDEX + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.US_ASCII))) {
+            for (Map.Entry<String, Long> e : this.entries.entrySet()) {
+                w.write("P " + e.getKey() + " " + e.getValue() + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), new File(this.dir, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.indexLines = this.entries.size();
+        this.index = openIndex(true);
+    }
+
+    /**
+     * Write the index log, for example at the end of a batch
+     */
+    public synchronized void flush() throws IOException {
+        this.index.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        this.index.close();
+    }
+
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the size of the entries in bytes
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "transcript cache " + this.dir + " : " + this.entries.size() + " entries, " + this.size / 1024 + " KB, " + this.hits + " hits, " + this.misses + " misses";
+    }
+}
@@ -0,0 +1,179 @@
+package whisper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+import io.github.ggerganov.whispercpp.bean.WhisperToken;
+
+/**
+ * Reader of the verbose_json responses of whisper-server, segment by segment while the response is
+ * received. Only the current segment is kept in memory, the full text of the response is skipped.
+ *
+ * Times are converted from seconds to centiseconds, as for the local transcriptions. They are 0 if
+ * the server runs with --no-timestamps.
+ */
+public class VerboseJsonReader implements Closeable {
+    private final JsonPullParser parser;
+    private boolean started;
+    private boolean inSegments;
+    private String language;
+    private double duration = -1;
+
+    public VerboseJsonReader(InputStream in) {
+        this.parser = new JsonPullParser(in);
+    }
+
+    /**
+     * @return the next segment, null at the end of the response
+     * @throws RemoteWhisperCPP.ServerException if the response is an error
+     */
+    public WhisperSegment nextSegment() throws IOException {
+        final JsonPullParser p = this.parser;
+        if (!this.started) {
+            p.beginObject();
+            this.started = true;
+        }
+        while (true) {
+            if (this.inSegments) {
+                if (p.hasNext()) {
+                    return readSegment();
+                }
+                p.endArray();
+                this.inSegments = false;
+            }
+            if (!p.hasNext()) {
+                break;
+            }
+            final String name = p.nextName();
+            if (name.equals("segments")) {
+                p.beginArray();
+                this.inSegments = true;
+            } else if (name.equals("language")) {
+                this.language = p.nextString();
+            } else if (name.equals("duration")) {
+                this.duration = p.nextDouble();
+            } else if (name.equals("error")) {
+                throw new RemoteWhisperCPP.ServerException(p.nextString());
+            } else {
+                p.skipValue();
+            }
+        }
+        if (p.peek() == JsonPullParser.Token.END_OBJECT) {
+            p.endObject();
+        }
+        return null;
+    }
+
+    private WhisperSegment readSegment() throws IOException {
+        final JsonPullParser p = this.parser;
+        final WhisperSegment segment = new WhisperSegment();
+        final List<Integer> ids = new ArrayList<>();
+        final List<WhisperToken> tokens = new ArrayList<>();
+        p.beginObject();
+        while (p.hasNext()) {
+            final String name = p.nextName();
+            if (name.equals("text")) {
+                segment.setSentence(p.nextString());
+            } else if (name.equals("start")) {
+                segment.setStart(toCentiseconds(p.nextDouble()));
+            } else if (name.equals("end")) {
+                segment.setEnd(toCentiseconds(p.nextDouble()));
+            } else if (name.equals("tokens")) {
+                p.beginArray();
+                while (p.hasNext()) {
+                    ids.add((int) p.nextLong());
+                }
+                p.endArray();
+            } else if (name.equals("words")) {
+                p.beginArray();
+                while (p.hasNext()) {
+                    tokens.add(readToken());
+                }
+                p.endArray();
+            } else {
+                p.skipValue();
+            }
+        }
+        p.endObject();
+        // The ids and the words are listed in the same order
+        for (int i = 0; i < tokens.size() && i < ids.size(); i++) {
+            tokens.get(i).setId(ids.get(i));
+        }
+        segment.setTokens(tokens);
+        return segment;
+    }
+
+    private WhisperToken readToken() throws IOException {
+        final JsonPullParser p = this.parser;
+        final WhisperToken token = new WhisperToken();
+        p.beginObject();
+        while (p.hasNext()) {
+            final String name = p.nextName();
+            if (name.equals("word")) {
+                token.setText(p.nextString());
+            } else if (name.equals("start")) {
+                token.setStart(toCentiseconds(p.nextDouble()));
+            } else if (name.equals("end")) {
+                token.setEnd(toCentiseconds(p.nextDouble()));
+            } else if (name.equals("probability")) {
+                token.setProbability((float) p.nextDouble());
+            } else {
+                p.skipValue();
+            }
+        }
+        p.endObject();
+        return token;
+    }
+
+    private static long toCentiseconds(double seconds) {
+        return Math.round(seconds * 100);
+    }
+
+    /**
+     * @return the language of the audio, null if not read yet
+     */
+    public String getLanguage() {
+        return this.language;
+    }
+
+    /**
+     * @return the duration of the audio in seconds, -1 if not read yet
+     */
+    public double getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Read the whole response.
+     */
+    public List<WhisperSegment> readSegments() throws IOException {
+        final List<WhisperSegment> segments = new ArrayList<>();
+        readSegments(segments::add);
+        return segments;
+    }
+
+    /**
+     * Read the whole response, giving each segment to the consumer once it is read.
+     *
+     * @return the number of segments
+     */
+    public int readSegments(Consumer<WhisperSegment> consumer) throws IOException {
+        int count = 0;
+        WhisperSegment s;
+        while ((s = nextSegment()) != null) {
+            consumer.accept(s);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.parser.close();
+    }
+}
@@ -0,0 +1,27 @@
+package whisper;
+
+/**
+ * Classify short frames of 16 bits little endian PCM audio as speech or non speech.
+ *
+ * Implementations can keep an internal state (noise estimation...), frames must be given in
+ * order.
+ */
+public interface VoiceActivityDetector {
+
+    /**
+     * @return length of a frame in bytes
+     */
+    int getFrameLength();
+
+    /**
+     * @param pcm audio
+     * @param offset start of the frame, getFrameLength() bytes are used
+     * @return true if the frame contains speech
+     */
+    boolean isSpeech(byte[] pcm, int offset);
+
+    /**
+     * Forget the state, before analysing an unrelated audio stream.
+     */
+    void reset();
+}
@@ -0,0 +1,582 @@
+package whisper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.Preferences;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.github.ggerganov.whispercpp.bean.WhisperSegment;
+
+/**
+ * HTTP server transcribing with the local model, compatible with the /inference endpoint of
+ * whisper-server : a multipart/form-data POST with the audio as "file" part, and the optional
+ * "temperature", "temperature_inc" and "response_format" (json, verbose_json or text) parts.
+ *
+ * The transcriptions run in parallel up to the number of whisper states of the model, the next
+ * requests wait in a bounded queue. When the queue is full, the server answers 503 with a
+ * Retry-After header, so the clients can go to another server. The requests are read in memory, up
+ * to MAX_REQUEST_SIZE, by a fixed number of threads.
+ *
+ * The answers have the header RemoteWhisperCPP.STREAMING_UPLOAD_HEADER : the clients may then send a
+ * recording while it is captured, as a chunked request with a WAV file of unknown length, read up to
+ * the end of its part.
+ *
+ * Usage: java -cp ... whisper.WhisperServer [--port 9595] [--model file.bin] [--states n] [--queue n]
+ */
+public class WhisperServer {
+    // whisper ignores the audio shorter than 1s
+    private static final int MIN_SAMPLES = 16000 + 1600;
+    // Largest accepted request, about 8 minutes of 16kHz mono WAV, kept in memory while waiting
+    private static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+    // Read from a rejected request so the client gets the answer, the connection is closed beyond
+    private static final int MAX_DRAINED_SIZE = 1024 * 1024;
+    // Threads answering the requests rejected while all the slots are taken
+    private static final int REJECT_THREADS = 4;
+    // Weight of the last transcription in the average processing time
+    private static final double DURATION_WEIGHT = 0.2;
+
+    private final LocalWhisperCPP whisper;
+    private final int queueSize;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // One permit per running or waiting request
+    private final Semaphore slots;
+    private final AtomicInteger served = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    // Average processing time in ms, for the Retry-After of the rejected requests
+    private volatile double averageDuration = 2000;
+
+    /**
+     * @param whisper the model, its number of parallel transcriptions is the number of requests
+     *            processed at the same time
+     * @param queueSize number of requests waiting for a whisper state, before rejecting the next
+     *            ones
+     */
+    public WhisperServer(LocalWhisperCPP whisper, int port, int queueSize) throws IOException {
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("invalid queue size " + queueSize);
+        }
+        this.whisper = whisper;
+        this.queueSize = queueSize;
+        this.slots = new Semaphore(whisper.getParallelTranscriptions() + queueSize);
+        this.server = HttpServer.create(new InetSocketAddress(port), 64);
+        // Threads reading the requests, one per slot plus a few for the rejected requests
+        this.executor = Executors.newFixedThreadPool(whisper.getParallelTranscriptions() + queueSize + REJECT_THREADS);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/inference", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    exchange.getResponseHeaders().set(RemoteWhisperCPP.STREAMING_UPLOAD_HEADER, "wav");
+                    handleInference(exchange);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    if (exchange.getResponseCode() < 0) {
+                        sendError(exchange, 500, e.getMessage());
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+        System.out.println("Whisper server listening on port " + this.server.getAddress().getPort() + ", " + this.whisper.getParallelTranscriptions() + " parallel transcriptions, "
+                + this.queueSize + " waiting requests at most");
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting requests, wait for the running ones, then release the model.
+     */
+    public void stop() throws InterruptedException {
+        this.server.stop(0);
+        this.executor.shutdown();
+        this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        this.whisper.release();
+        System.out.println("Whisper server stopped, " + this.served + " requests served, " + this.rejected + " rejected");
+    }
+
+    private void handleInference(HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        if (method.equals("OPTIONS")) {
+            // Used by the clients to check the server and open a connection
+            exchange.getResponseHeaders().set("Allow", "POST, OPTIONS");
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        if (!method.equals("POST")) {
+            sendError(exchange, 405, "POST expected");
+            return;
+        }
+        if (!this.slots.tryAcquire()) {
+            reject(exchange);
+            return;
+        }
+        try {
+            transcribe(exchange);
+        } finally {
+            this.slots.release();
+        }
+    }
+
+    /**
+     * Answer 503, with the estimated time for a slot to be free
+     */
+    private void reject(HttpExchange exchange) throws IOException {
+        this.rejected.incrementAndGet();
+        final int parallel = this.whisper.getParallelTranscriptions();
+        final long wait = (long) Math.ceil(this.averageDuration * (this.queueSize + parallel) / parallel / 1000);
+        System.out.println("Server busy, request from " + exchange.getRemoteAddress() + " rejected (retry after " + wait + "s)");
+        // The clients send the whole body before reading the answer
+        if (!drain(exchange.getRequestBody())) {
+            exchange.getResponseHeaders().set("Connection", "close");
+        }
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, wait)));
+        sendError(exchange, 503, "server busy");
+    }
+
+    private void transcribe(HttpExchange exchange) throws IOException {
+        final long t1 = System.currentTimeMillis();
+        final String boundary = getBoundary(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
+            sendError(exchange, 400, "multipart/form-data expected");
+            return;
+        }
+        final byte[] body;
+        try {
+            body = readBody(exchange.getRequestBody(), exchange.getRequestHeaders().getFirst("Content-Length"));
+        } catch (IOException e) {
+            // For example a streaming upload cancelled by the client, there is no one to answer
+            System.out.println("Upload from " + exchange.getRemoteAddress() + " aborted (" + e.getMessage() + ")");
+            return;
+        }
+        if (body == null) {
+            if (!drain(exchange.getRequestBody())) {
+                exchange.getResponseHeaders().set("Connection", "close");
+            }
+            sendError(exchange, 413, "request larger than " + MAX_REQUEST_SIZE + " bytes");
+            return;
+        }
+        final Map<String, Part> parts;
+        try {
+            parts = parseMultipart(body, boundary);
+        } catch (IOException e) {
+            sendError(exchange, 400, "invalid multipart body, " + e.getMessage());
+            return;
+        }
+        final Part file = parts.get("file");
+        if (file == null) {
+            sendError(exchange, 400, "no 'file' field in the request");
+            return;
+        }
+        final String responseFormat = parts.containsKey("response_format") ? parts.get("response_format").getString(body) : "json";
+        if (!responseFormat.equals("json") && !responseFormat.equals("verbose_json") && !responseFormat.equals("text")) {
+            sendError(exchange, 400, "unsupported response_format " + responseFormat);
+            return;
+        }
+        final DecodingProfile profile;
+        try {
+            profile = DecodingProfile.DICTATION.withTemperature(getTemperature(parts, body, "temperature", 0.0f), getTemperature(parts, body, "temperature_inc", 0.2f));
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "invalid temperature " + e.getMessage());
+            return;
+        }
+
+        try (SegmentedAudioStore audio = new SegmentedAudioStore()) {
+            try {
+                setWavLength(body, file.offset, file.length);
+                AudioFileDecoder.decode(new ByteArrayInputStream(body, file.offset, file.length), audio);
+            } catch (UnsupportedAudioFileException e) {
+                // For example FLAC, the clients send WAV then
+                sendError(exchange, 400, "unsupported audio format (" + file.contentType + ")");
+                return;
+            }
+            final long t2 = System.currentTimeMillis();
+            final List<WhisperSegment> segments;
+            final WhisperStatePool.State state = this.whisper.acquireState();
+            try {
+                segments = this.whisper.transcribe(state, profile, audio, 0, audio.size(), MIN_SAMPLES, null);
+            } finally {
+                this.whisper.releaseState(state);
+            }
+            final long t3 = System.currentTimeMillis();
+            this.averageDuration += DURATION_WEIGHT * ((t3 - t1) - this.averageDuration);
+            this.served.incrementAndGet();
+            System.out.println("Transcribed " + audio.size() / 32000.0 + "s from " + exchange.getRemoteAddress() + " in " + (t3 - t1) + " ms (" + (t2 - t1) + " ms for the upload and the decoding), "
+                    + (this.whisper.getParallelTranscriptions() + this.queueSize - this.slots.availablePermits() - 1) + " other requests");
+            sendResult(exchange, responseFormat, segments, audio.size() / 32000.0);
+        }
+    }
+
+    /**
+     * Set the lengths of a WAV file longer than received, for example streamed before its length was
+     * known (see RemoteWhisperCPP.STREAMED_WAV_LENGTH), to the received length
+     */
+    static void setWavLength(byte[] b, int offset, int length) {
+        if (length < 12 || !isAscii(b, offset, "RIFF") || !isAscii(b, offset + 8, "WAVE")) {
+            return;
+        }
+        final int end = offset + length;
+        long pos = offset + 12;
+        while (pos + 8 <= end) {
+            final long size = getInt(b, (int) pos + 4) & 0xFFFFFFFFL;
+            if (isAscii(b, (int) pos, "data")) {
+                if (size > end - pos - 8) {
+                    setInt(b, (int) pos + 4, (int) (end - pos - 8));
+                    setInt(b, offset + 4, length - 8);
+                }
+                return;
+            }
+            // Chunks are padded to an even length
+            pos += 8 + size + (size & 1);
+        }
+    }
+
+    private static boolean isAscii(byte[] b, int offset, String s) {
+        if (offset + s.length() > b.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (b[offset + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void setInt(byte[] b, int offset, int v) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not a number in [0, 1]
+     */
+    private static float getTemperature(Map<String, Part> parts, byte[] body, String name, float defaultValue) {
+        final Part p = parts.get(name);
+        if (p == null) {
+            return defaultValue;
+        }
+        final float value = Float.parseFloat(p.getString(body));
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException(name + " " + value + " not in [0, 1]");
+        }
+        // Rounded, the whisper states keep the params of the last profiles
+        return Math.round(value * 100) / 100f;
+    }
+
+    private static void sendResult(HttpExchange exchange, String responseFormat, List<WhisperSegment> segments, double duration) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (WhisperSegment s : segments) {
+            text.append(s.getSentence());
+        }
+        if (responseFormat.equals("text")) {
+            send(exchange, 200, "text/plain; charset=utf-8", text.toString().trim());
+            return;
+        }
+        final JSONObject result;
+        if (responseFormat.equals("verbose_json")) {
+            result = toVerboseJson(segments, duration);
+        } else {
+            result = new JSONObject().put("text", text.toString().trim());
+        }
+        send(exchange, 200, "application/json", result.toString());
+    }
+
+    /**
+     * @param duration duration of the audio in seconds
+     * @return the verbose_json response of the segments, without the tokens
+     */
+    static JSONObject toVerboseJson(List<WhisperSegment> segments, double duration) {
+        final StringBuilder text = new StringBuilder();
+        final JSONArray array = new JSONArray(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            final WhisperSegment s = segments.get(i);
+            text.append(s.getSentence());
+            final JSONObject segment = new JSONObject();
+            segment.put("id", i);
+            segment.put("text", s.getSentence());
+            // Centiseconds to seconds
+            segment.put("start", s.getStart() / 100.0);
+            segment.put("end", s.getEnd() / 100.0);
+            array.add(segment);
+        }
+        final JSONObject result = new JSONObject();
+        result.put("task", "transcribe");
+        result.put("duration", duration);
+        result.put("text", text.toString());
+        result.put("segments", array);
+        return result;
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        System.out.println("Error " + code + " for " + exchange.getRemoteAddress() + " : " + message);
+        send(exchange, code, "application/json", new JSONObject().put("error", String.valueOf(message)).toString());
+    }
+
+    private static void send(HttpExchange exchange, int code, String contentType, String response) throws IOException {
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return the boundary of a multipart/form-data content type, null if not multipart
+     */
+    static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.toLowerCase().startsWith("boundary=")) {
+                String boundary = param.substring("boundary=".length());
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the body, null if larger than MAX_REQUEST_SIZE (the rest of the body is not read)
+     */
+    private static byte[] readBody(InputStream in, String contentLength) throws IOException {
+        int capacity = 64 * 1024;
+        if (contentLength != null) {
+            final long length = Long.parseLong(contentLength.trim());
+            if (length > MAX_REQUEST_SIZE) {
+                return null;
+            }
+            capacity = (int) length;
+        }
+        byte[] buffer = new byte[capacity];
+        int size = 0;
+        while (true) {
+            if (size == buffer.length) {
+                if (size == MAX_REQUEST_SIZE) {
+                    return null;
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(MAX_REQUEST_SIZE, Math.max(64 * 1024, 2L * size)));
+            }
+            final int n = in.read(buffer, size, buffer.length - size);
+            if (n < 0) {
+                break;
+            }
+            size += n;
+        }
+        return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Read the rest of a request body, up to MAX_DRAINED_SIZE
+     *
+     * @return false if the body is longer, the connection must be closed
+     */
+    private static boolean drain(InputStream in) throws IOException {
+        final byte[] buffer = new byte[16 * 1024];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            size += n;
+            if (size > MAX_DRAINED_SIZE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A part of a multipart/form-data body, its content is in the body
+     */
+    static final class Part {
+        final String name;
+        final String fileName;
+        final String contentType;
+        final int offset;
+        final int length;
+
+        Part(String name, String fileName, String contentType, int offset, int length) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String getString(byte[] body) {
+            return new String(body, this.offset, this.length, StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    /**
+     * @return the parts by name, their contents are not copied
+     * @throws IOException if the body is not valid
+     */
+    static Map<String, Part> parseMultipart(byte[] body, String boundary) throws IOException {
+        final byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        final Map<String, Part> parts = new HashMap<>();
+        // The first delimiter may have no line feed before it
+        int pos = indexOf(body, delimiter, 2, 0);
+        if (pos < 0) {
+            throw new IOException("no multipart boundary");
+        }
+        pos -= 2;
+        while (true) {
+            pos += delimiter.length;
+            if (pos + 2 > body.length) {
+                throw new IOException("truncated multipart body");
+            }
+            if (body[pos] == '-' && body[pos + 1] == '-') {
+                // Last delimiter
+                return parts;
+            }
+            // Headers up to an empty line
+            final int headersEnd = indexOf(body, new byte[] { '\r', '\n', '\r', '\n' }, 0, pos);
+            if (headersEnd < 0) {
+                throw new IOException("truncated multipart headers");
+            }
+            String name = null;
+            String fileName = null;
+            String contentType = null;
+            for (String header : new String(body, pos, headersEnd - pos, StandardCharsets.UTF_8).split("\r\n")) {
+                final int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String headerName = header.substring(0, colon).trim();
+                final String value = header.substring(colon + 1).trim();
+                if (headerName.equalsIgnoreCase("Content-Disposition")) {
+                    name = getParameter(value, "name");
+                    fileName = getParameter(value, "filename");
+                } else if (headerName.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                }
+            }
+            final int start = headersEnd + 4;
+            final int end = indexOf(body, delimiter, 0, start);
+            if (end < 0) {
+                throw new IOException("truncated multipart body");
+            }
+            if (name != null) {
+                parts.put(name, new Part(name, fileName, contentType, start, end - start));
+            }
+            pos = end;
+        }
+    }
+
+    /**
+     * @return the value of a parameter of a header, for example name in form-data; name="file"
+     */
+    private static String getParameter(String header, String name) {
+        for (String param : header.split(";")) {
+            param = param.trim();
+            final int equals = param.indexOf('=');
+            if (equals > 0 && param.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = param.substring(equals + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param skip number of bytes of the pattern ignored at its start
+     * @return the position of the pattern (without the skipped bytes) from the given position, -1 if
+     *         not found
+     */
+    private static int indexOf(byte[] b, byte[] pattern, int skip, int from) {
+        final int length = pattern.length - skip;
+        final byte first = pattern[skip];
+        for (int i = from; i <= b.length - length; i++) {
+            if (b[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < length && b[i + j] == pattern[skip + j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Preferences prefs = Preferences.userRoot().node("mister-whisper");
+        int port = prefs.getInt("server.port", 9595);
+        File model = new File("models", prefs.get("model", "ggml-large-v3-turbo-q8_0.bin"));
+        int states = prefs.getInt("parallel-transcriptions", LocalWhisperCPP.getDefaultParallelTranscriptions());
+        int queue = prefs.getInt("server.queue-size", 8);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--model")) {
+                model = new File(args[++i]);
+            } else if (args[i].equals("--states")) {
+                states = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--queue")) {
+                queue = Integer.parseInt(args[++i]);
+            }
+        }
+        if (!model.exists()) {
+            System.out.println("Model " + model.getAbsolutePath() + " not found");
+            System.exit(1);
+        }
+        final LocalWhisperCPP whisper = new LocalWhisperCPP(model, states);
+        System.out.println("Whisper server using " + model.getName());
+        whisper.warmUp(null);
+        final WhisperServer server = new WhisperServer(whisper, port, queue);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        server.start();
+    }
+}
@@ -0,0 +1,217 @@
+package whisper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jna.Pointer;
+
+import io.github.ggerganov.whispercpp.WhisperCpp;
+import io.github.ggerganov.whispercpp.params.WhisperFullParams;
+
+/**
+ * Bounded pool of whisper states sharing the model of a single context.
+ *
+ * Each state has its own native params, so transcriptions using different states can run in
+ * parallel. States are created on demand, up to the maximum size.
+ *
+ * The interactive transcriptions (dictation) have priority over the background ones (watched
+ * folders) : a background transcription waits while an interactive one is running or waiting, and
+ * leaves the last state to the interactive ones when there are several. The background
+ * transcriptions release their state between short parts of the audio, so they never make the
+ * dictation wait for more than one part.
+ */
+public class WhisperStatePool implements AutoCloseable {
+
+    public static class State {
+        // Profiles kept by a state, the clients of the server choose the temperatures
+        private static final int MAX_PARAMS = 8;
+        private final Pointer pointer;
+
+        // Least recently used first
+        private final Map<DecodingProfile, WhisperFullParams> params = new LinkedHashMap<>(16, 0.75f, true);
+        private FloatBuffer samples;
+        private boolean background;
+
+        State(Pointer pointer) {
+            this.pointer = pointer;
+        }
+
+        public Pointer getPointer() {
+            return this.pointer;
+        }
+
+        /**
+         * Get a direct buffer for the samples to transcribe with this state, so they can be given to
+         * whisper without copy. The buffer is reused by the next transcriptions and only grows : a
+         * direct buffer is only freed by the garbage collector, so allocating one for each long
+         * recording could exhaust the direct memory before a collection.
+         *
+         * @return a cleared buffer, with the given length as limit
+         */
+        public FloatBuffer getSamplesBuffer(int length) {
+            FloatBuffer b = this.samples;
+            if (b == null || b.capacity() < length) {
+                // Grown by half at least, so slightly longer recordings do not allocate again
+                final int capacity = b == null ? length : (int) Math.min(Integer.MAX_VALUE / 4, Math.max(length, b.capacity() * 3L / 2));
+                b = ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                this.samples = b;
+            }
+            b.clear();
+            b.limit(length);
+            return b;
+        }
+
+        /**
+         * Get the native params of this state for the given profile, created and written once. The
+         * params of the least recently used profile are freed when more than MAX_PARAMS are kept.
+         *
+         * The params are not synchronized automatically with the native memory: the caller changes
+         * the per call fields with writeField().
+         */
+        public WhisperFullParams getParams(WhisperCpp whisper, DecodingProfile profile) {
+            WhisperFullParams p = this.params.get(profile);
+            if (p == null) {
+                if (this.params.size() >= MAX_PARAMS) {
+                    final Iterator<WhisperFullParams> it = this.params.values().iterator();
+                    whisper.freeFullParams(it.next());
+                    it.remove();
+                }
+                p = whisper.newFullDefaultParams(profile.getStrategy());
+                profile.apply(p);
+                p.write();
+                p.setAutoSynch(false);
+                this.params.put(profile, p);
+            }
+            return p;
+        }
+    }
+
+    private final WhisperCpp whisper;
+    private final int maxSize;
+    private final Deque<State> available = new ArrayDeque<>();
+    private final List<State> all = new ArrayList<>();
+    private int inUse;
+    private int interactiveInUse;
+    private int interactiveWaiting;
+    private boolean closed;
+
+    public WhisperStatePool(WhisperCpp whisper, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid pool size " + maxSize);
+        }
+        this.whisper = whisper;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a state for an interactive transcription, waiting for one to be released if the pool is
+     * exhausted.
+     */
+    public synchronized State acquire() throws InterruptedException {
+        this.interactiveWaiting++;
+        try {
+            while (true) {
+                final State s = poll(false);
+                if (s != null) {
+                    this.interactiveInUse++;
+                    return s;
+                }
+                wait();
+            }
+        } finally {
+            this.interactiveWaiting--;
+            // The background transcriptions may now run
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get a state for a background transcription, waiting until no interactive transcription is
+     * running nor waiting.
+     */
+    public synchronized State acquireBackground() throws InterruptedException {
+        while (true) {
+            // The last state is kept for the interactive transcriptions
+            if (this.interactiveWaiting == 0 && this.interactiveInUse == 0 && (this.maxSize == 1 || this.inUse < this.maxSize - 1)) {
+                final State s = poll(true);
+                if (s != null) {
+                    return s;
+                }
+            }
+            wait();
+        }
+    }
+
+    private State poll(boolean background) {
+        if (this.closed) {
+            throw new IllegalStateException("pool closed");
+        }
+        State s = this.available.poll();
+        if (s == null && this.all.size() < this.maxSize) {
+            s = new State(this.whisper.initState());
+            this.all.add(s);
+        }
+        if (s != null) {
+            s.background = background;
+            this.inUse++;
+        }
+        return s;
+    }
+
+    public synchronized void release(State s) {
+        this.inUse--;
+        if (!s.background) {
+            this.interactiveInUse--;
+        }
+        this.available.push(s);
+        notifyAll();
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the number of states currently acquired
+     */
+    public synchronized int getInUseCount() {
+        return this.inUse;
+    }
+
+    /**
+     * Free all the states, waiting for the acquired ones to be released. An interrupt does not stop
+     * the wait (the states in use can't be freed), the interrupt status is restored at the end.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        notifyAll();
+        boolean interrupted = false;
+        while (this.inUse > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (State s : this.all) {
+            for (WhisperFullParams p : s.params.values()) {
+                this.whisper.freeFullParams(p);
+            }
+            this.whisper.freeState(s.pointer);
+        }
+        this.all.clear();
+        this.available.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}